@@ -0,0 +1,104 @@
+import java.util.*;
+
+/**
+ * Adaptive replacement cache (Megiddo and Modha).
+ *
+ * Frames are split between T1, blocks seen once recently, and T2, blocks
+ * seen at least twice.  The ghost lists B1 and B2 remember the block ids
+ * recently evicted from T1 and T2; a miss on a ghost shifts the target size
+ * of T1 (p) toward whichever list would have produced a hit.  This keeps a
+ * scan of cold data blocks from flushing hot inode and index blocks.
+ */
+public class ArcPolicy implements CachePolicy {
+
+    private int capacity;
+    private int p;
+    private int[] frameBlocks;
+
+    /** Frames ordered from least to most recently used. */
+    private LinkedHashSet<Integer> t1;
+    private LinkedHashSet<Integer> t2;
+
+    /** Ghost block ids ordered from oldest to newest. */
+    private LinkedHashSet<Integer> b1;
+    private LinkedHashSet<Integer> b2;
+
+    @Override
+    public void init(int frames) {
+        capacity = frames;
+        p = 0;
+        frameBlocks = new int[frames];
+        Arrays.fill(frameBlocks, -1);
+        t1 = new LinkedHashSet<Integer>();
+        t2 = new LinkedHashSet<Integer>();
+        b1 = new LinkedHashSet<Integer>();
+        b2 = new LinkedHashSet<Integer>();
+    }
+
+    @Override
+    public void accessed(int frame) {
+        // Any hit promotes the frame to the most recently used end of T2.
+        if (!t1.remove(frame)) {
+            t2.remove(frame);
+        }
+        t2.add(frame);
+    }
+
+    @Override
+    public void inserted(int frame, int blockId) {
+        frameBlocks[frame] = blockId;
+        if (b1.remove(blockId) || b2.remove(blockId)) {
+            t2.add(frame);
+        }
+        else {
+            t1.add(frame);
+        }
+    }
+
+    @Override
+    public void removed(int frame) {
+        if (!t1.remove(frame)) {
+            t2.remove(frame);
+        }
+        frameBlocks[frame] = -1;
+    }
+
+    @Override
+    public int victim(int blockId) {
+        // Adapt the target size of T1 based on which ghost list was hit.
+        boolean inB2 = b2.contains(blockId);
+        if (b1.contains(blockId)) {
+            p = Math.min(capacity, p + Math.max(1, b2.size() / b1.size()));
+        }
+        else if (inB2) {
+            p = Math.max(0, p - Math.max(1, b1.size() / b2.size()));
+        }
+
+        int frame;
+        if (!t1.isEmpty() && (t1.size() > p || (inB2 && t1.size() == p) || t2.isEmpty())) {
+            frame = removeFirst(t1);
+            b1.add(frameBlocks[frame]);
+        }
+        else {
+            frame = removeFirst(t2);
+            b2.add(frameBlocks[frame]);
+        }
+        frameBlocks[frame] = -1;
+
+        // Bound the ghost lists so that the directory stays within 2c entries.
+        while (t1.size() + b1.size() > capacity && !b1.isEmpty()) {
+            removeFirst(b1);
+        }
+        while (b1.size() + b2.size() > capacity) {
+            removeFirst(b2.isEmpty() ? b1 : b2);
+        }
+        return frame;
+    }
+
+    private static int removeFirst(LinkedHashSet<Integer> list) {
+        Iterator<Integer> iter = list.iterator();
+        int value = iter.next();
+        iter.remove();
+        return value;
+    }
+}
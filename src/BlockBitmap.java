@@ -0,0 +1,249 @@
+
+/**
+ * Tracks free disk blocks with one bit per block.
+ *
+ * The bitmap is kept in memory and stored in a run of reserved blocks on
+ * disk.  Allocating and freeing only touch memory; sync writes back the
+ * bitmap blocks that changed.  A set bit means the block is in use.
+ */
+public class BlockBitmap {
+
+    /** The number of blocks whose state fits in one bitmap block. */
+    public static final int BITS_PER_BLOCK = Disk.blockSize * 8;
+
+    private final int totalBlocks;
+
+    /** The first disk block the bitmap is stored in. */
+    private final int start;
+
+    private final long[] words;
+
+    /** Which of the bitmap's own blocks need to be written back. */
+    private final boolean[] dirty;
+
+    private int freeCount;
+
+    /** The word where the next allocation search starts (next fit). */
+    private int cursor;
+
+    /**
+     * Create a bitmap with every block marked as used.
+     *
+     * @param totalBlocks The number of blocks on the disk.
+     * @param start The disk block where the bitmap is stored.
+     */
+    public BlockBitmap(int totalBlocks, int start) {
+        this.totalBlocks = totalBlocks;
+        this.start = start;
+        this.words = new long[(totalBlocks + 63) / 64];
+        this.dirty = new boolean[blocksNeeded(totalBlocks)];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = -1L;
+        }
+        this.freeCount = 0;
+        this.cursor = 0;
+    }
+
+    /**
+     * The number of disk blocks needed to store the bitmap of a disk.
+     */
+    public static int blocksNeeded(int totalBlocks) {
+        return (totalBlocks + BITS_PER_BLOCK - 1) / BITS_PER_BLOCK;
+    }
+
+    /**
+     * The first disk block the bitmap is stored in.
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * The number of disk blocks the bitmap is stored in.
+     */
+    public int getBlocks() {
+        return dirty.length;
+    }
+
+    public int getFreeCount() {
+        return freeCount;
+    }
+
+    /**
+     * Reads the bitmap from disk.
+     *
+     * @return true on success.
+     */
+    public boolean load() {
+        byte[] buffer = new byte[Disk.blockSize];
+        freeCount = 0;
+        for (int b = 0; b < dirty.length; b++) {
+            if (SysLib.cread(start + b, buffer) == Kernel.ERROR) {
+                return false;
+            }
+            for (int i = 0; i < Disk.blockSize; i += 8) {
+                int word = (b * BITS_PER_BLOCK + i * 8) / 64;
+                if (word >= words.length) {
+                    break;
+                }
+                long value = 0;
+                for (int j = 7; j >= 0; j--) {
+                    value = (value << 8) | (buffer[i + j] & 0xFF);
+                }
+                words[word] = value;
+            }
+            dirty[b] = false;
+        }
+
+        // Bits past the end of the disk never describe real blocks.
+        for (int block = totalBlocks; block < words.length * 64; block++) {
+            words[block / 64] |= 1L << (block % 64);
+        }
+        for (int i = 0; i < words.length; i++) {
+            freeCount += 64 - Long.bitCount(words[i]);
+        }
+        cursor = 0;
+        return true;
+    }
+
+    /**
+     * Writes the changed bitmap blocks back to disk.
+     *
+     * @return true on success.
+     */
+    public boolean sync() {
+        byte[] buffer = new byte[Disk.blockSize];
+        for (int b = 0; b < dirty.length; b++) {
+            if (!dirty[b]) {
+                continue;
+            }
+            for (int i = 0; i < Disk.blockSize; i += 8) {
+                int word = (b * BITS_PER_BLOCK + i * 8) / 64;
+                long value = word < words.length ? words[word] : -1L;
+                for (int j = 0; j < 8; j++) {
+                    buffer[i + j] = (byte) (value >>> (j * 8));
+                }
+            }
+            if (Journal.write(start + b, buffer) == Kernel.ERROR) {
+                return false;
+            }
+            dirty[b] = false;
+        }
+        return true;
+    }
+
+    /**
+     * Marks every bitmap block as needing to be written.
+     */
+    public void markAllDirty() {
+        for (int b = 0; b < dirty.length; b++) {
+            dirty[b] = true;
+        }
+    }
+
+    public boolean isFree(int block) {
+        return block >= 0 && block < totalBlocks && (words[block / 64] & (1L << (block % 64))) == 0;
+    }
+
+    /**
+     * Allocates any free block.
+     *
+     * @return The block or -1 if the disk is full.
+     */
+    public int allocate() {
+        if (freeCount == 0) {
+            return -1;
+        }
+        for (int n = 0; n < words.length; n++) {
+            int word = (cursor + n) % words.length;
+            if (words[word] != -1L) {
+                int block = word * 64 + Long.numberOfTrailingZeros(~words[word]);
+                cursor = word;
+                setUsed(block);
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Allocates count contiguous blocks.
+     *
+     * @return The first block of the run or -1 if there is no such run.
+     */
+    public int allocateRun(int count) {
+        if (count <= 0 || count > freeCount) {
+            return -1;
+        }
+        if (count == 1) {
+            return allocate();
+        }
+
+        int runStart = -1;
+        int runLength = 0;
+        for (int block = 0; block < totalBlocks; block++) {
+            // Skip over fully used words quickly.
+            if (block % 64 == 0 && words[block / 64] == -1L) {
+                runLength = 0;
+                block += 63;
+                continue;
+            }
+            if (isFree(block)) {
+                if (runLength == 0) {
+                    runStart = block;
+                }
+                runLength++;
+                if (runLength == count) {
+                    for (int i = runStart; i < runStart + count; i++) {
+                        setUsed(i);
+                    }
+                    return runStart;
+                }
+            }
+            else {
+                runLength = 0;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Marks a block as used.
+     */
+    public void setUsed(int block) {
+        long mask = 1L << (block % 64);
+        if ((words[block / 64] & mask) == 0) {
+            words[block / 64] |= mask;
+            freeCount--;
+            dirty[block / BITS_PER_BLOCK] = true;
+        }
+    }
+
+    /**
+     * Marks a block as free.
+     *
+     * @return false if the block was already free.
+     */
+    public boolean free(int block) {
+        long mask = 1L << (block % 64);
+        if ((words[block / 64] & mask) == 0) {
+            return false;
+        }
+        words[block / 64] &= ~mask;
+        freeCount++;
+        dirty[block / BITS_PER_BLOCK] = true;
+        return true;
+    }
+
+    /**
+     * The lowest free block or -1 if the disk is full.
+     */
+    public int firstFree() {
+        for (int word = 0; word < words.length; word++) {
+            if (words[word] != -1L) {
+                return word * 64 + Long.numberOfTrailingZeros(~words[word]);
+            }
+        }
+        return -1;
+    }
+}
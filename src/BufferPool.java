@@ -0,0 +1,48 @@
+import java.util.*;
+
+/**
+ * A pool of block sized buffers.
+ *
+ * Reads and writes borrow a buffer for the duration of the call instead of
+ * allocating a new one each time.  Buffers that are returned when the pool
+ * is already full are left to the garbage collector.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+
+    /** The most buffers kept for reuse. */
+    private final int maxBuffers;
+
+    private final Deque<byte[]> buffers;
+
+    /**
+     * Create an empty pool.
+     *
+     * @param bufferSize The size of each buffer.
+     * @param maxBuffers The most buffers kept for reuse.
+     */
+    public BufferPool(int bufferSize, int maxBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+        this.buffers = new ArrayDeque<byte[]>(maxBuffers);
+    }
+
+    /**
+     * Takes a buffer from the pool or allocates one if the pool is empty.
+     * The contents of the buffer are undefined.
+     */
+    public synchronized byte[] acquire() {
+        byte[] buffer = buffers.poll();
+        return buffer != null ? buffer : new byte[bufferSize];
+    }
+
+    /**
+     * Gives a buffer back to the pool.
+     */
+    public synchronized void release(byte[] buffer) {
+        if (buffer.length == bufferSize && buffers.size() < maxBuffers) {
+            buffers.push(buffer);
+        }
+    }
+}
@@ -0,0 +1,512 @@
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * A write-back disk block cache.
+ *
+ * All of the file system's block I/O goes through the cache using
+ * SysLib.cread and SysLib.cwrite.  Dirty blocks are only written to the
+ * disk when they are evicted or on sync/flush.  The victim selection is
+ * delegated to a CachePolicy so that different algorithms can be selected
+ * at boot.
+ *
+ * Evicting a dirty block writes back only that block.  The Journal writes
+ * newly allocated data blocks back before it commits the metadata that
+ * points to them, so the cache doesn't have to order its writes.
+ *
+ * The cache lock is not held while the disk is read or written, so hits
+ * and the I/O of other blocks go on meanwhile.  A frame being filled or
+ * evicted is busy: threads that need its block wait for it, and it is out
+ * of the policy so that it can't be chosen as a victim.  A frame being
+ * written back by a sync stays usable, it is only evicted once the write
+ * is done.  The lock is a ReentrantLock rather than a monitor, which a
+ * virtual thread waiting for the disk would pin.
+ */
+public class Cache {
+
+    /** Sentinel for a frame that doesn't hold a block. */
+    private static final int EMPTY = -1;
+
+    private final int blockSize;
+
+    /** The block data of each frame. */
+    private final byte[][] pages;
+
+    /** The disk block held by each frame or EMPTY. */
+    private final int[] frameBlocks;
+
+    /** Whether the frame has been modified since it was read from disk. */
+    private final boolean[] dirty;
+
+    /** Whether the frame is being filled or evicted. */
+    private final boolean[] busy;
+
+    /** Whether a copy of the frame is being written back by a sync. */
+    private final boolean[] writing;
+
+    /** The number of busy frames. */
+    private int busyCount;
+
+    /** Dirty frames, least recently written first. */
+    private final Set<Integer> dirtyOrder;
+
+    /** Maps a disk block to the frame holding it. */
+    private final Map<Integer, Integer> frames;
+
+    /** Frames that currently hold no block. */
+    private final Deque<Integer> freeFrames;
+
+    private final CachePolicy policy;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Signalled when a frame stops being busy or written. */
+    private final Condition frameReady = lock.newCondition();
+
+    // Statistics
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long writeBacks;
+
+    /**
+     * Create a cache using the second chance algorithm.
+     *
+     * @param blockSize The size of each block.
+     * @param cacheBlocks The number of blocks the cache can hold.
+     */
+    public Cache(int blockSize, int cacheBlocks) {
+        this(blockSize, cacheBlocks, new SecondChancePolicy());
+    }
+
+    /**
+     * Create a cache.
+     *
+     * @param blockSize The size of each block.
+     * @param cacheBlocks The number of blocks the cache can hold.
+     * @param policy Selects which block to evict when the cache is full.
+     */
+    public Cache(int blockSize, int cacheBlocks, CachePolicy policy) {
+        if (cacheBlocks <= 0) {
+            throw new IllegalArgumentException("Invalid cache size: " + cacheBlocks);
+        }
+        this.blockSize = blockSize;
+        this.policy = policy;
+        pages = new byte[cacheBlocks][blockSize];
+        frameBlocks = new int[cacheBlocks];
+        dirty = new boolean[cacheBlocks];
+        busy = new boolean[cacheBlocks];
+        writing = new boolean[cacheBlocks];
+        dirtyOrder = new LinkedHashSet<Integer>(cacheBlocks * 2);
+        frames = new HashMap<Integer, Integer>(cacheBlocks * 2);
+        freeFrames = new ArrayDeque<Integer>(cacheBlocks);
+        for (int i = 0; i < cacheBlocks; i++) {
+            frameBlocks[i] = EMPTY;
+            freeFrames.add(i);
+        }
+        policy.init(cacheBlocks);
+    }
+
+    /**
+     * Create a policy by name.
+     *
+     * @param name One of second-chance, lru or arc.
+     * @return The policy or null if the name is not known.
+     */
+    public static CachePolicy createPolicy(String name) {
+        if ("second-chance".equalsIgnoreCase(name)) {
+            return new SecondChancePolicy();
+        }
+        else if ("lru".equalsIgnoreCase(name)) {
+            return new LruPolicy();
+        }
+        else if ("arc".equalsIgnoreCase(name)) {
+            return new ArcPolicy();
+        }
+        return null;
+    }
+
+    /**
+     * Reads a block into buffer, going to disk only on a miss.
+     */
+    public boolean read(int blockId, byte[] buffer) {
+        if (blockId < 0) {
+            SysLib.cerr("threadOS: a wrong blockId for cread\n");
+            return false;
+        }
+
+        lock.lock();
+        try {
+            int frame;
+            while (true) {
+                Integer cached = frames.get(blockId);
+                if (cached != null && !busy[cached]) {
+                    frame = cached;
+                    hits++;
+                    policy.accessed(frame);
+                    break;
+                }
+                if (cached != null || !hasFrame()) {
+                    await();
+                    continue;
+                }
+
+                misses++;
+                frame = claimFrame(blockId);
+                boolean read;
+                lock.unlock();
+                try {
+                    read = SysLib.rawread(blockId, pages[frame]) != Kernel.ERROR;
+                }
+                finally {
+                    lock.lock();
+                }
+                if (!read) {
+                    frames.remove(blockId);
+                    frameBlocks[frame] = EMPTY;
+                    freeFrames.push(frame);
+                    release(frame);
+                    return false;
+                }
+                policy.inserted(frame, blockId);
+                release(frame);
+                break;
+            }
+            System.arraycopy(pages[frame], 0, buffer, 0, blockSize);
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes buffer into the cached copy of a block.  The block reaches the
+     * disk when it is evicted or the cache is synced.
+     */
+    public boolean write(int blockId, byte[] buffer) {
+        if (blockId < 0) {
+            SysLib.cerr("threadOS: a wrong blockId for cwrite\n");
+            return false;
+        }
+
+        lock.lock();
+        try {
+            int frame;
+            while (true) {
+                Integer cached = frames.get(blockId);
+                if (cached != null && !busy[cached]) {
+                    frame = cached;
+                    hits++;
+                    policy.accessed(frame);
+                    break;
+                }
+                if (cached != null || !hasFrame()) {
+                    await();
+                    continue;
+                }
+
+                // The whole block is replaced so there is no need to read it first.
+                misses++;
+                frame = claimFrame(blockId);
+                policy.inserted(frame, blockId);
+                release(frame);
+                break;
+            }
+            System.arraycopy(buffer, 0, pages[frame], 0, blockSize);
+            dirty[frame] = true;
+            dirtyOrder.remove(frame);
+            dirtyOrder.add(frame);
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes all dirty blocks back to disk, keeping them cached.
+     */
+    public void sync() {
+        lock.lock();
+        try {
+            writeBackAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes back only the given blocks, if they are cached and dirty.
+     */
+    public void sync(int[] blockIds) {
+        lock.lock();
+        try {
+            for (int blockId : blockIds) {
+                writeBack(blockId);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes all dirty blocks back to disk and empties the cache.
+     */
+    public void flush() {
+        lock.lock();
+        try {
+            // Frames that are busy or being written can't be emptied yet.
+            while (true) {
+                writeBackAll();
+                if (busyCount == 0 && !isWriting()) {
+                    if (dirtyOrder.isEmpty()) {
+                        break;
+                    }
+                }
+                else {
+                    await();
+                }
+            }
+            for (int frame = 0; frame < pages.length; frame++) {
+                if (frameBlocks[frame] != EMPTY) {
+                    policy.removed(frame);
+                    frames.remove(frameBlocks[frame]);
+                    frameBlocks[frame] = EMPTY;
+                    freeFrames.push(frame);
+                }
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The number of blocks that have been written but not written back.
+     */
+    public int getDirtyCount() {
+        lock.lock();
+        try {
+            return dirtyOrder.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHits() {
+        lock.lock();
+        try {
+            return hits;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMisses() {
+        lock.lock();
+        try {
+            return misses;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public long getEvictions() {
+        lock.lock();
+        try {
+            return evictions;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public long getWriteBacks() {
+        lock.lock();
+        try {
+            return writeBacks;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Resets the hit/miss counters.
+     */
+    public void resetStats() {
+        lock.lock();
+        try {
+            hits = 0;
+            misses = 0;
+            evictions = 0;
+            writeBacks = 0;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            long total = hits + misses;
+            return "Cache[" + policy.getClass().getSimpleName() +
+                " blocks=" + pages.length +
+                " cached=" + frames.size() +
+                " hits=" + hits +
+                " misses=" + misses +
+                " hitRatio=" + (total == 0 ? 0 : (hits * 100 / total)) + "%" +
+                " evictions=" + evictions +
+                " writeBacks=" + writeBacks + "]";
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether a frame can be claimed, either a free one or one the policy
+     * can evict.  The caller holds the lock.
+     */
+    private boolean hasFrame() {
+        return !freeFrames.isEmpty() || busyCount < pages.length;
+    }
+
+    /**
+     * Finds a frame for blockId, evicting a victim if the cache is full.
+     * The frame is returned busy and mapped to blockId, so that others
+     * needing the block wait for it.  The lock is let go while a dirty
+     * victim is written back.  The caller holds the lock and has checked
+     * hasFrame.
+     */
+    private int claimFrame(int blockId) {
+        int frame;
+        if (!freeFrames.isEmpty()) {
+            frame = freeFrames.pop();
+        }
+        else {
+            frame = policy.victim(blockId);
+            evictions++;
+        }
+        busy[frame] = true;
+        busyCount++;
+        frames.put(blockId, frame);
+
+        int victim = frameBlocks[frame];
+        if (victim != EMPTY) {
+            // A sync may be writing an older copy, which must reach the disk
+            // before this one.  The busy frame isn't changed meanwhile.
+            while (writing[frame]) {
+                await();
+            }
+            if (dirty[frame]) {
+                dirty[frame] = false;
+                dirtyOrder.remove(frame);
+                writeBacks++;
+                lock.unlock();
+                try {
+                    SysLib.rawwrite(victim, pages[frame]);
+                }
+                finally {
+                    lock.lock();
+                }
+            }
+            frames.remove(victim);
+        }
+        frameBlocks[frame] = blockId;
+        dirty[frame] = false;
+        return frame;
+    }
+
+    /**
+     * Ends the claim of a frame and wakes those waiting for it.  The caller
+     * holds the lock.
+     */
+    private void release(int frame) {
+        busy[frame] = false;
+        busyCount--;
+        frameReady.signalAll();
+    }
+
+    /**
+     * Writes back a block if it is cached and dirty, letting go of the lock
+     * meanwhile.  Returns once the block is on the disk, waiting for a busy
+     * frame or another write back of the block first.  The caller holds the
+     * lock.
+     */
+    private void writeBack(int blockId) {
+        while (true) {
+            Integer frame = frames.get(blockId);
+            if (frame == null) {
+                // An evicted block was written back before it was unmapped.
+                return;
+            }
+            if (busy[frame] || writing[frame]) {
+                await();
+                continue;
+            }
+            if (!dirty[frame]) {
+                return;
+            }
+
+            // The frame stays usable while a copy of it is written.
+            byte[] copy = pages[frame].clone();
+            dirty[frame] = false;
+            dirtyOrder.remove(frame);
+            writing[frame] = true;
+            writeBacks++;
+            lock.unlock();
+            try {
+                SysLib.rawwrite(blockId, copy);
+            }
+            finally {
+                lock.lock();
+                writing[frame] = false;
+                frameReady.signalAll();
+            }
+            return;
+        }
+    }
+
+    private void writeBackAll() {
+        int[] blockIds = new int[dirtyOrder.size()];
+        int i = 0;
+        for (int frame : dirtyOrder) {
+            blockIds[i++] = frameBlocks[frame];
+        }
+        for (int blockId : blockIds) {
+            writeBack(blockId);
+        }
+    }
+
+    private boolean isWriting() {
+        for (boolean w : writing) {
+            if (w) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Waits for a frame to stop being busy or written, letting the
+     * scheduler run other threads meanwhile.  The caller holds the lock.
+     */
+    private void await() {
+        Kernel.block();
+        try {
+            frameReady.awaitUninterruptibly();
+        }
+        finally {
+            Kernel.unblock();
+        }
+    }
+}
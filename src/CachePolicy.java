@@ -0,0 +1,39 @@
+
+/**
+ * An eviction policy for the block Cache.
+ *
+ * The cache owns a fixed number of frames, numbered 0 to frames - 1, and
+ * informs the policy about every frame it fills, touches or drops.  When all
+ * of the frames are in use the cache asks the policy for a victim.
+ */
+public interface CachePolicy {
+
+    /**
+     * Resets the policy to manage the given number of empty frames.
+     */
+    void init(int frames);
+
+    /**
+     * A frame already holding a block was read or written.
+     */
+    void accessed(int frame);
+
+    /**
+     * A block was placed into a previously empty frame.
+     */
+    void inserted(int frame, int blockId);
+
+    /**
+     * A frame was emptied by the cache without being picked as a victim.
+     */
+    void removed(int frame);
+
+    /**
+     * Chooses the frame to evict in order to make room for blockId.
+     * The returned frame is considered empty by the policy afterwards.
+     *
+     * @param blockId The block that is about to be loaded.
+     * @return The frame to evict.
+     */
+    int victim(int blockId);
+}
@@ -1,14 +1,34 @@
-
+import java.util.*;
 
 //the "/" root directory maintains each file in a different directory entry that cotnains its file name
+//and the inumber of the directory it lives in; subdirectories are entries of type DIRECTORY, so
+//a path like "/logs/2017/a.txt" is resolved by walking (parent, name) pairs starting at entry 0
+
+//subdirectories are not inodes with entries of their own: every entry of every directory lives in
+//this one table, saved as the data of "/".  So names are at most 30 characters at every level, the
+//whole tree holds no more entries than the inodes given to format, and the table is read in full
+//when the disk is mounted.  Only the blocks holding changed entries are written back
 
 public class Directory
 {
     private static final int maxChars = 30;                           //max characters of each file name
     private static final int NOT_FOUND = -1;
+
+    //entry types
+    public static final short FILE = 0;
+    public static final short DIRECTORY = 1;
+
     //directory entries
-    private int fsizes[];                                       //each element stores a different file size 
+    private int fsizes[];                                       //each element stores a different file size
     private char fnames[][];                                    //each element stores a different file name
+    private short fparents[];                                   //inumber of the directory holding the entry
+    private short ftypes[];                                     //FILE or DIRECTORY
+
+    //in-memory lookup structures, rebuilt from the entries
+    private Map<String, Short> index;                           //parent + "/" + lower cased name -> inumber
+    private Map<Short, Set<Short>> children;                    //directory inumber -> entries in it
+    private BitSet freeSlots;                                   //set bit = unused entry
+    private BitSet dirtySlots;                                  //set bit = changed since last saved
 
 
     public Directory(int maxNumber) {                           //directory constructor
@@ -16,32 +36,76 @@ public class Directory
         for(int i = 0; i < maxNumber; i++)
             fsizes[i] = 0;                                      //all file size init to 0
         fnames = new char[maxNumber][maxChars];
+        fparents = new short[maxNumber];                        //everything starts out in "/"
+        ftypes = new short[maxNumber];
         String root = "/";                                      //entry(inode) 0 is "/"
         fsizes[0] = root.length();                              //fsizes[0] is the size of "/"
         root.getChars(0, fsizes[0], fnames[0], 0);              //fnames[0] includes "/"
+        ftypes[0] = DIRECTORY;
+        rebuildIndex();
+        dirtySlots = new BitSet(maxNumber);
+    }
+
+    private void rebuildIndex() {
+        //builds the name index, the child lists and the free slot set from the entries
+        index = new HashMap<String, Short>(fsizes.length * 2);
+        children = new HashMap<Short, Set<Short>>();
+        freeSlots = new BitSet(fsizes.length);
+        for(int i = 1; i < fsizes.length; i++)                  //entry 0 is always "/"
+        {
+            if(fsizes[i] > 0)
+                link((short)i);
+            else
+                freeSlots.set(i);
+        }
+    }
+
+    private void link(short iNumber) {
+        //adds an entry to the name index and its parent's child list
+        index.put(key(fparents[iNumber], new String(fnames[iNumber], 0, fsizes[iNumber])), iNumber);
+        Set<Short> siblings = children.get(fparents[iNumber]);
+        if(siblings == null)
+        {
+            siblings = new LinkedHashSet<Short>();
+            children.put(fparents[iNumber], siblings);
+        }
+        siblings.add(iNumber);
+    }
+
+    private void unlink(short iNumber) {
+        //removes an entry from the name index and its parent's child list
+        index.remove(key(fparents[iNumber], new String(fnames[iNumber], 0, fsizes[iNumber])));
+        Set<Short> siblings = children.get(fparents[iNumber]);
+        if(siblings != null)
+            siblings.remove(iNumber);
     }
-    
-    public void bytes2directory(byte data[]) { 
+
+    private static String key(short parent, String filename) {
+        //names are matched without regard to case
+        return parent + "/" + filename.toLowerCase(Locale.ROOT);
+    }
+
+    public void bytes2directory(byte data[]) {
         //assumes data[] receives directory information from disk
         //inits the directory instance with this data[]
-        
+
         //consider input sanitation
         if(data == null)
         {
-            //reconsider this implementation; 
+            //reconsider this implementation;
             //it might be ok that data[] is null/empty, at which point
             //fsize and fnames would also be empty
             SysLib.cerr("Argument Error: Directory.java(data[]); data == null\n");
             return;
         }
-        
+
         int offset = 0;
         for(int i = 0; i < fsizes.length; i++)
         {
             fsizes[i] = SysLib.bytes2int(data, offset);
             offset += 4;
         }
-        
+
         for(int i = 0; i < fnames.length; i++)
         {
             String fn = new String(data, offset, maxChars * 2);
@@ -51,21 +115,35 @@ public class Directory
             }
             offset += maxChars * 2;
         }
+
+        //directories saved before subdirectories existed only hold files in "/"
+        boolean hasParents = data.length >= offset + fsizes.length * 4;
+        for(int i = 0; i < fparents.length; i++)
+        {
+            fparents[i] = hasParents ? SysLib.bytes2short(data, offset + i * 2) : 0;
+            ftypes[i] = hasParents ? SysLib.bytes2short(data, offset + (fparents.length + i) * 2) : FILE;
+        }
+        ftypes[0] = DIRECTORY;
+
+        rebuildIndex();
+        dirtySlots.clear();
     }
-    
-    public byte[] directory2bytes() { 
+
+    public byte[] directory2bytes() {
         //converts and returns directory information into a plain byte array
         //this byte array will be written back to disk
         //note: only meaningful directory information should be converted
         //into bytes
-        
+
         //used during a sync call
-        //consider shortcircuits 
-        
+        //consider shortcircuits
+
         int fsizeByteCount = fsizes.length * 4;
         int fnameByteCount = fsizes.length * maxChars * 2;
-        
-        byte[] b = new byte[fsizeByteCount + fnameByteCount];
+        int fparentByteCount = fsizes.length * 2;
+        int ftypeByteCount = fsizes.length * 2;
+
+        byte[] b = new byte[fsizeByteCount + fnameByteCount + fparentByteCount + ftypeByteCount];
 
         int offset = 0;
         for(int i = 0; i < fsizes.length; i++)
@@ -78,77 +156,207 @@ public class Directory
         {
             String fn = new String(fnames[i], 0, fsizes[i]);
             byte[] fnBytes = fn.getBytes();
-            
+
             for(int j = 0; j < fnBytes.length; j++)
             {
                 b[offset + j] = fnBytes[j];
             }
             offset += maxChars * 2;
         }
-        
+
+        for(int i = 0; i < fparents.length; i++)
+        {
+            SysLib.short2bytes(fparents[i], b, offset);
+            offset += 2;
+        }
+
+        for(int i = 0; i < ftypes.length; i++)
+        {
+            SysLib.short2bytes(ftypes[i], b, offset);
+            offset += 2;
+        }
+
         return b;
     }
-    
-    public short ialloc(String filename) { 
+
+    public boolean isDirty() {
+        //true if any entry changed since the directory was last saved
+        return !dirtySlots.isEmpty();
+    }
+
+    public BitSet getDirtyBlocks(int blockSize) {
+        //returns which blocks of the directory2bytes() image hold changed entries
+        //so that only those blocks need to be written back
+        BitSet blocks = new BitSet();
+        int fnameStart = fsizes.length * 4;
+        int fparentStart = fnameStart + fsizes.length * maxChars * 2;
+        int ftypeStart = fparentStart + fsizes.length * 2;
+        for(int i = dirtySlots.nextSetBit(0); i >= 0; i = dirtySlots.nextSetBit(i + 1))
+        {
+            int sizeOffset = i * 4;
+            blocks.set(sizeOffset / blockSize, (sizeOffset + 3) / blockSize + 1);
+
+            int nameOffset = fnameStart + i * maxChars * 2;
+            blocks.set(nameOffset / blockSize, (nameOffset + maxChars * 2 - 1) / blockSize + 1);
+
+            int parentOffset = fparentStart + i * 2;
+            blocks.set(parentOffset / blockSize, (parentOffset + 1) / blockSize + 1);
+
+            int typeOffset = ftypeStart + i * 2;
+            blocks.set(typeOffset / blockSize, (typeOffset + 1) / blockSize + 1);
+        }
+        return blocks;
+    }
+
+    public void clearDirty() {
+        //called once the changed entries have been saved
+        dirtySlots.clear();
+    }
+
+    public short ialloc(String filename) {
         //filename is the one of a file to be created.
         //allocates a new inode number for this filename
-        
-        //input sanitation 
-        if(filename == null || filename.isEmpty())
+        return alloc(filename, FILE);
+    }
+
+    public short mkdir(String path) {
+        //allocates a new inode number for a directory
+        return alloc(path, DIRECTORY);
+    }
+
+    private short alloc(String path, short type) {
+        //input sanitation
+        if(path == null || path.isEmpty())
             return NOT_FOUND;
 
+        String[] names = split(path);
+        if(names.length == 0)
+            return NOT_FOUND;                                   //"/" always exists
+        String filename = names[names.length - 1];
+
         // Do not allow filenames that are too long.
         if (filename.length() > maxChars)
             return Kernel.ERROR;
-        
-        short output = NOT_FOUND;
-        for(int i = 1; i < fsizes.length; i++)
-        {
-            if(fsizes[i] == 0)
-            {
-                output = (short)i;
-                fsizes[i] = Math.min(filename.length(), maxChars);
+        if (filename.equals(".") || filename.equals(".."))
+            return Kernel.ERROR;
 
-                for(int j = 0; j < fsizes[i]; j++)
-                    fnames[i][j] = filename.charAt(j);
-                break;
-            }
-        }
-        return output;
+        //the parent has to be an existing directory
+        short parent = resolve(names, names.length - 1);
+        if(parent < 0 || lookup(parent, filename) >= 0)
+            return NOT_FOUND;
+
+        //take the lowest free entry
+        int i = freeSlots.nextSetBit(1);
+        if(i < 0 || i >= fsizes.length)
+            return NOT_FOUND;
+
+        freeSlots.clear(i);
+        fsizes[i] = Math.min(filename.length(), maxChars);
+        for(int j = 0; j < fsizes[i]; j++)
+            fnames[i][j] = filename.charAt(j);
+        fparents[i] = parent;
+        ftypes[i] = type;
+        link((short)i);
+        dirtySlots.set(i);
+        return (short)i;
     }
-    
-    public boolean ifree(short iNumber) { 
+
+    public boolean ifree(short iNumber) {
         //deallocates this inumber (inode number)
         //the corresponding file will be deallocated
-        
+
         //input sanitation
-        if(fsizes[iNumber] < 0 || iNumber > fsizes.length - 1)
+        if(iNumber <= 0 || iNumber > fsizes.length - 1 || fsizes[iNumber] <= 0)
             return false;
-        
-        
+
+        //only empty directories can be removed
+        if(ftypes[iNumber] == DIRECTORY)
+        {
+            Set<Short> entries = children.get(iNumber);
+            if(entries != null && !entries.isEmpty())
+                return false;
+            children.remove(iNumber);
+        }
+
+
+            unlink(iNumber);
+            freeSlots.set(iNumber);
+            dirtySlots.set(iNumber);
             fsizes[iNumber] = 0;
+            fparents[iNumber] = 0;
+            ftypes[iNumber] = FILE;
             //fnames[iNumber] = new char[maxChars];
             return true;
     }
-    
-    public short namei(String filename) { 
+
+    public short namei(String filename) {
         //returns the inumber corresponding to this filename
-        
-        //input sanitation 
+        //the filename may be a path; names without a "/" are in the root
+
+        //input sanitation
         if(filename == null || filename.isEmpty())
             return NOT_FOUND;
 
-        int fileLength = filename.length();
-        for(int i = 0; i < fsizes.length; i++)
+        String[] names = split(filename);
+        if(names.length == 0)
+            return 0;                                           //"/"
+
+        short parent = resolve(names, names.length - 1);
+        if(parent < 0)
+            return NOT_FOUND;
+        return lookup(parent, names[names.length - 1]);
+    }
+
+    public boolean isDirectory(short iNumber) {
+        return iNumber >= 0 && iNumber < fsizes.length && fsizes[iNumber] > 0
+            && ftypes[iNumber] == DIRECTORY;
+    }
+
+    public String[] list(short iNumber) {
+        //returns the names of the entries in a directory or null if it isn't one
+        if(!isDirectory(iNumber))
+            return null;
+
+        Set<Short> entries = children.get(iNumber);
+        if(entries == null)
+            return new String[0];
+
+        String[] names = new String[entries.size()];
+        int i = 0;
+        for(short entry : entries)
         {
-            if(fsizes[i] == fileLength)
-            {
-                String fn = new String(fnames[i], 0, fsizes[i]);
+            names[i++] = new String(fnames[entry], 0, fsizes[entry]) +
+                (ftypes[entry] == DIRECTORY ? "/" : "");
+        }
+        return names;
+    }
 
-                if(filename.compareToIgnoreCase(fn) == 0)
-                    return (short)i;
-            }
+    private short lookup(short parent, String filename) {
+        Short iNumber = index.get(key(parent, filename));
+        return iNumber != null ? iNumber : NOT_FOUND;
+    }
+
+    private short resolve(String[] names, int count) {
+        //returns the directory named by the first count names, walking from "/";
+        //each step is one lookup in the in-memory index
+        short current = 0;
+        for(int i = 0; i < count; i++)
+        {
+            current = lookup(current, names[i]);
+            if(current < 0 || ftypes[current] != DIRECTORY)
+                return NOT_FOUND;
+        }
+        return current;
+    }
+
+    private static String[] split(String path) {
+        //splits a path into its names, ignoring empty names ("a//b", "/a/")
+        List<String> names = new ArrayList<String>();
+        for(String name : path.split("/"))
+        {
+            if(!name.isEmpty())
+                names.add(name);
         }
-        return NOT_FOUND;
+        return names.toArray(new String[names.size()]);
     }
 }
\ No newline at end of file
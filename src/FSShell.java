@@ -44,6 +44,45 @@ public class FSShell implements Runnable {
         }
     }
     
+    /**
+     * Create a directory.
+     */
+    public void mkdir(String path) {
+        if (SysLib.mkdir(path) != Kernel.OK) {
+            SysLib.cerr("Could not create directory: " + path + "\n");
+        }
+    }
+
+    /**
+     * Remove an empty directory.
+     */
+    public void rmdir(String path) {
+        if (SysLib.rmdir(path) != Kernel.OK) {
+            SysLib.cerr("Could not remove directory: " + path + "\n");
+        }
+    }
+
+    /**
+     * List the root directory.
+     */
+    public void ls() {
+        ls("/");
+    }
+
+    /**
+     * List a directory.
+     */
+    public void ls(String path) {
+        List<String> entries = new ArrayList<String>();
+        if (SysLib.readdir(path, entries) == Kernel.ERROR) {
+            SysLib.cerr("Could not list directory: " + path + "\n");
+            return;
+        }
+        for (String entry : entries) {
+            SysLib.cout(entry + "\n");
+        }
+    }
+
     /**
      * Open a file and print out the file descriptor,
      * which can be used with other commands.
@@ -85,6 +124,24 @@ public class FSShell implements Runnable {
         }
     }
     
+    /**
+     * Write the file's data, inode and directory entry back to disk.
+     */
+    public void fsync(int fd) {
+        if (SysLib.fsync(fd) == Kernel.ERROR) {
+            SysLib.cerr("Could not fsync!\n");
+        }
+    }
+    
+    /**
+     * Write the file's data back to disk, and the inode only if it is needed.
+     */
+    public void fdatasync(int fd) {
+        if (SysLib.fdatasync(fd) == Kernel.ERROR) {
+            SysLib.cerr("Could not fdatasync!\n");
+        }
+    }
+    
     /**
      * Read size bytes as a string from the file.
      */
@@ -99,6 +156,25 @@ public class FSShell implements Runnable {
         SysLib.cout("Read: [" + nRead + "]\n" + new String(buffer, 0, nRead, "UTF-8") + "\n");
     }
     
+    /**
+     * Read count buffers of size bytes with one call and print them.
+     */
+    public void freadv(int fd, int size, int count) throws Exception {
+        byte[][] buffers = new byte[count][size];
+        int nRead = SysLib.readv(fd, buffers);
+        if (nRead == Kernel.ERROR) {
+            SysLib.cerr("Failed to read!\n");
+            return;
+        }
+
+        SysLib.cout("Read: [" + nRead + "]\n");
+        for (int i = 0; i < count && nRead > 0; i++) {
+            int len = Math.min(size, nRead);
+            SysLib.cout(new String(buffers[i], 0, len, "UTF-8") + "\n");
+            nRead -= len;
+        }
+    }
+
     /**
      * Get the size of the file by filename.
      */
@@ -125,27 +201,34 @@ public class FSShell implements Runnable {
     public void importFile(String externalFile, String internalFile) throws Exception {
     	FileInputStream fis = new FileInputStream(externalFile);
     	try {
-    		byte[] buffer = new byte[Disk.blockSize];
+    		// Hand several blocks to each write call.
+    		byte[][] buffers = new byte[16][Disk.blockSize];
     		int fd = SysLib.open(internalFile, "w");
     		if (fd < 0) {
     			throw new IOException("Could not open internal file: " + internalFile);
     		}
     		try {
         		while (true) {
-        			int nRead = fis.read(buffer);
-        			if (nRead < 0) {
-        				return;
-        			}
-        			int writeResult;
-        			if (nRead < buffer.length) {
-        				writeResult = SysLib.write(fd, Arrays.copyOf(buffer, nRead));
+        			int count = 0;
+        			int nRead = 0;
+        			while (count < buffers.length) {
+        				nRead = fis.read(buffers[count]);
+        				if (nRead != Disk.blockSize) {
+        					break;
+        				}
+        				count++;
         			}
-        			else {
-        				writeResult = SysLib.write(fd, buffer);
+        			boolean partial = nRead > 0 && nRead < Disk.blockSize;
+        			byte[][] batch = Arrays.copyOf(buffers, partial ? count + 1 : count);
+        			if (partial) {
+        				batch[count] = Arrays.copyOf(buffers[count], nRead);
         			}
-        			if (writeResult < 0) {
+        			if (batch.length > 0 && SysLib.writev(fd, batch) < 0) {
         				throw new IOException("Could not write data.");
         			}
+        			if (nRead < 0) {
+        				return;
+        			}
         		}
     		}
     		finally {
@@ -287,26 +370,43 @@ public class FSShell implements Runnable {
     }
     
     /**
-     * Dumps out the block free list.
+     * Prints the block cache hit/miss counters.
+     */
+    public void cacheStats() throws Exception {
+        SysLib.cout(getFieldOfType(Kernel.class, null, Cache.class) + "\n");
+    }
+
+    /**
+     * Resets the block cache hit/miss counters.
+     */
+    public void cacheReset() throws Exception {
+        getFieldOfType(Kernel.class, null, Cache.class).resetStats();
+    }
+
+    /**
+     * Dumps out the ranges of free blocks.
      */
     public void debugFreeList() throws Exception {
         FileSystem fs = getFileSystem();
         SuperBlock sb = getFieldOfType(FileSystem.class, fs, SuperBlock.class);
         
-        int node = sb.freeList;
-        byte[] buffer = new byte[Disk.blockSize];
-        List<Integer> nodes = new ArrayList<Integer>();
-        
-        while (node >= 0) {
-            nodes.add(node);
-            if (SysLib.rawread(node, buffer) == Kernel.ERROR) {
-                SysLib.cerr("Could not read!");
-                return;
+        List<String> ranges = new ArrayList<String>();
+        int nFree = 0;
+        int block = 0;
+        while (block < sb.totalBlocks) {
+            if (!sb.isFree(block)) {
+                block++;
+                continue;
+            }
+            int start = block;
+            while (block < sb.totalBlocks && sb.isFree(block)) {
+                block++;
             }
-            node = SysLib.bytes2int(buffer, 0);
+            nFree += block - start;
+            ranges.add(start == block - 1 ? String.valueOf(start) : start + "-" + (block - 1));
         }
         
-        SysLib.cout("Free List:\n" + nodes + "\n");
+        SysLib.cout("Free Blocks (" + nFree + "):\n" + ranges + "\n");
     }
     
     /**
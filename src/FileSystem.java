@@ -1,17 +1,72 @@
+import java.util.*;
+import java.util.concurrent.locks.*;
+
 /**
  * The FileSystem is the main module for performing operations
  * on the files and the file system structure.
+ *
+ * There is no lock over the whole file system.  Locks are taken in this
+ * order, and a thread holding one never waits for one higher in the list:
+ *
+ *   1. the directory lock.  Opening a file that exists, listing and syncing
+ *      the directory read it; creating, deleting, mkdir, rmdir and format
+ *      change it.  The directory file itself is written by whoever has the
+ *      inode lock of "/" for writing, so syncs of it take turns.
+ *   2. the lock of a file table entry, which guards its seek pointer and
+ *      the inode while the entry reads or writes it.
+ *   3. the inode locks of the FileTable, striped by iNumber, which guard
+ *      open counts and the loading and saving of inodes.
+ *   4. the monitor of an inode, which guards its cache of index blocks
+ *      against readers of the file loading them at the same time, and its
+ *      length and dirty flag against a sync writing it out.  Writing an
+ *      inode out takes the lock of the inode blocks too, as 16 inodes share
+ *      a block.
+ *   5. the SuperBlock, which allocates and frees blocks.
+ *   6. the Journal and then the Cache.
+ *
+ * The readers-writer lock of a file is waited for holding no lock, except
+ * that of "/", which the file system waits for holding the directory lock
+ * to read and write the directory.  Users can't open directories, so no
+ * one else ever holds it.
  */
 public class FileSystem {
 
+    /**
+     * Extra blocks reserved past the end of a file when an append needs to
+     * grow it, so that later appends continue in the same extent.
+     */
+    private static final int APPEND_PREALLOC_BLOCKS = 8;
+
+    /**
+     * The most blocks one journal operation of a write covers.  With the
+     * index blocks, the inode and the bitmap they stay within
+     * Journal.OPERATION_BLOCKS.
+     */
+    private static final int WRITE_CHUNK_BLOCKS = 32;
+
     /** Manages the blocks on the file system. */
     private final SuperBlock superBlock;
 
     /** The main root directory. */
-    private Directory root;
+    private volatile Directory root;
+
+    /** Guards the root directory and the namespace it holds. */
+    private final ReentrantReadWriteLock directoryLock = new ReentrantReadWriteLock();
 
     /** Manages file table entry objects. */
-    private FileTable fileTable;
+    private volatile FileTable fileTable;
+
+    /**
+     * The lock of each file table entry.  Reads and writes wait for the disk
+     * holding it, so it is not the entry's monitor, which would pin a
+     * virtual thread.  Entries come from threados.jar and have no field for
+     * it, and a lock goes away with its entry.
+     */
+    private final Map<FileTableEntry, ReentrantLock> entryLocks =
+        Collections.synchronizedMap(new WeakHashMap<FileTableEntry, ReentrantLock>());
+
+    /** Block buffers shared by reads and writes. */
+    private final BufferPool bufferPool = new BufferPool(Disk.blockSize, 16);
     
     /**
      * Create the new FileSystem.
@@ -19,28 +74,193 @@ public class FileSystem {
      * @param totalBlocks The number of blocks available to the file system.
      */
     public FileSystem(int totalBlocks) {
+        this(totalBlocks, false);
+    }
+
+    /**
+     * Create the new FileSystem.
+     *
+     * @param totalBlocks The number of blocks available to the file system.
+     * @param lazyInodeTable If true formatting leaves the inode blocks to be
+     *                       written when their inodes are first allocated.
+     */
+    public FileSystem(int totalBlocks, boolean lazyInodeTable) {
         if (totalBlocks < 0) {
             throw new FileSystemException("Invalid value for totalBlocks (" + totalBlocks + ")");
         }
-        superBlock = new SuperBlock(totalBlocks);
+        superBlock = new SuperBlock(totalBlocks, lazyInodeTable);
+        if (superBlock.format < SuperBlock.WIDE_POINTER_FORMAT) {
+            migrateInodes();
+        }
+        superBlock.addJournal();
         root = new Directory(this.superBlock.inodeBlocks);
-        fileTable = new FileTable(root);
+        fileTable = new FileTable(root, superBlock);
         if (!syncRootFromDisk()) {
             throw new FileSystemException("Could not save initial root directory.");
         }
+
+        // A directory saved in an older layout is written again whole.  That
+        // may be more than one commit holds, so like the inode migration it
+        // is done before the journal is opened.
+        if (!isRootLayoutCurrent() && !syncRootToDisk()) {
+            throw new FileSystemException("Could not save initial root directory.");
+        }
+        Journal.open(superBlock.journalStart, superBlock.journalBlocks);
+
+        // A clean disk is used as it is.  After a crash the bitmap is checked
+        // against the inodes in the background rather than holding up the boot.
+        if (!superBlock.wasMountedClean()) {
+            SysLib.cerr("threadOS: the disk was not synced, checking it in the background.\n");
+            new FileSystemChecker(this, superBlock.inodeBlocks).start();
+        }
+    }
+
+    /**
+     * Rewrites the inodes of a disk that used 16 bit block numbers in the
+     * current layout.  The data blocks stay where they are, only the index
+     * blocks are rebuilt.
+     */
+    private void migrateInodes() {
+        for (short iNumber = 0; iNumber < superBlock.inodeBlocks; iNumber++) {
+            List<Integer> dataBlocks = new ArrayList<Integer>();
+            List<Integer> indexBlocks = new ArrayList<Integer>();
+            Inode inode = Inode.fromLegacy(iNumber, dataBlocks, indexBlocks);
+
+            // The old index blocks have been read so they can be reused.
+            for (int block : indexBlocks) {
+                superBlock.returnBlock(block);
+            }
+
+            int offset = 0;
+            for (int block : dataBlocks) {
+                if (offset < inode.length && registerBlock(inode, offset, block)) {
+                    offset += Disk.blockSize;
+                }
+                else {
+                    superBlock.returnBlock(block);
+                }
+            }
+            if (inode.length > offset) {
+                SysLib.cerr("WARNING: inode " + iNumber + " was cut to " + offset + " bytes.\n");
+                inode.length = offset;
+            }
+            inode.toDisk(iNumber);
+        }
+
+        superBlock.format = SuperBlock.WIDE_POINTER_FORMAT;
+        superBlock.sync();
+        SysLib.csync();
+        SysLib.cerr("threadOS: migrated the inodes to 32 bit block numbers.\n");
     }
 
     /**
      * Syncs all data back to disk for the file system.
      */
     public void sync() {
-        // Lock the file system while performing sync.
-        synchronized (this) {
+        // Reading the directory is enough, the inode lock of "/" keeps the
+        // writes of it apart.
+        Journal.begin();
+        lock(directoryLock.readLock());
+        try {
             if (!syncRootToDisk()) {
                 // don't throw error and try to save as much to disk as possible.
                 SysLib.cerr("ERROR: could not sync root directory.\n");
             }
+            fileTable.sync();
             superBlock.sync();
+            superBlock.markClean();
+        }
+        finally {
+            directoryLock.readLock().unlock();
+            Journal.end();
+        }
+
+        // Commit the metadata outside the lock, since the commit waits for
+        // operations that may need it, then write back the block cache.
+        Journal.commit();
+        SysLib.csync();
+    }
+
+    /**
+     * Writes a file's data blocks back to disk and commits its inode, index
+     * blocks and directory entry along with the superblock and bitmap.
+     * Other files' blocks stay in the cache, though the commit also carries
+     * their pending metadata.
+     *
+     * @return true on success.
+     */
+    public boolean fsync(FileTableEntry ftEntry) {
+        return syncFile(ftEntry, true);
+    }
+
+    /**
+     * Writes a file's data blocks back to disk.  The inode, index blocks
+     * and bitmap are only committed if the data can't be read without them,
+     * that is when the file grew or got new blocks.
+     *
+     * @return true on success.
+     */
+    public boolean fdatasync(FileTableEntry ftEntry) {
+        return syncFile(ftEntry, false);
+    }
+
+    private boolean syncFile(FileTableEntry ftEntry, boolean metadata) {
+        int[] dataBlocks;
+        boolean commit;
+        Journal.begin();
+        try {
+            if (metadata) {
+                lock(directoryLock.readLock());
+                try {
+                    if (root.isDirty() && !syncRootToDisk()) {
+                        return false;
+                    }
+                }
+                finally {
+                    directoryLock.readLock().unlock();
+                }
+            }
+            lock(entryLock(ftEntry));
+            try {
+                if (ftEntry.inode.dirty) {
+                    ftEntry.inode.toDisk(ftEntry.iNumber);
+                }
+                dataBlocks = ftEntry.inode.getDataBlocks();
+                commit = metadata ? Journal.getPendingCount() > 0 :
+                    !Journal.isCommitted(ftEntry.inode.journalSequence);
+            }
+            finally {
+                entryLock(ftEntry).unlock();
+            }
+
+            // The blocks the file uses must be allocated in what reaches the
+            // disk too, or they could be given to another file after a crash.
+            if (commit || !Journal.isEnabled()) {
+                superBlock.sync();
+            }
+        }
+        finally {
+            Journal.end();
+        }
+
+        if (!Journal.isEnabled()) {
+            // The metadata went straight into the cache.
+            SysLib.csync();
+            return true;
+        }
+        SysLib.csync(dataBlocks);
+        if (commit) {
+            Journal.commit();
+        }
+        return true;
+    }
+
+    /**
+     * Whether the file system has changed since it was last synced.
+     */
+    public boolean isDirty() {
+        synchronized (superBlock) {
+            return superBlock.state != SuperBlock.STATE_CLEAN;
         }
     }
 
@@ -51,8 +271,11 @@ public class FileSystem {
      * @return true on success or false if the disk could not be formatted.
      */
     public boolean format(int files) {
-        synchronized (this) {
-            // Do not format if the fileTable has open files.
+        Journal.begin();
+        lock(directoryLock.writeLock());
+        try {
+            // Do not format if the fileTable has open files.  None can be
+            // opened while the directory is locked.
             if (!fileTable.fempty()) {
                 return false;
             }
@@ -64,12 +287,28 @@ public class FileSystem {
                 return false;
             }
 
+            // Changes to the old layout must not be committed over the new one.
+            // The new layout is more than one commit holds, so it is written
+            // straight into the cache and the journal is opened afterwards.
+            Journal.discard();
             superBlock.format(files);
             root = new Directory(this.superBlock.inodeBlocks);
-            fileTable = new FileTable(root);
-
-            return true;
+            fileTable = new FileTable(root, superBlock);
+            if (!syncRootToDisk()) {
+                SysLib.cerr("ERROR: could not sync root directory.\n");
+            }
+            Journal.open(superBlock.journalStart, superBlock.journalBlocks);
         }
+        finally {
+            directoryLock.writeLock().unlock();
+            Journal.end();
+        }
+
+        // Make the new layout visible to raw disk readers.
+        Journal.commit();
+        SysLib.csync();
+
+        return true;
     }
 
     /**
@@ -94,49 +333,121 @@ public class FileSystem {
         }
 
         FileTableEntry ftEntry = null;
-        synchronized (this) {
-            ftEntry = fileTable.falloc(fileName, mode);
+        Journal.begin();
+        try {
+            if (!FileMode.READ.equals(mode)) {
+                superBlock.markDirty();
+            }
+            ftEntry = allocateEntry(fileName, mode);
+        }
+        finally {
+            Journal.end();
         }
         if (ftEntry == null) {
             return null;
         }
 
-        // In write only mode the rest of the file should be freed
-        // if there is not more than 1 instance of the file open already.
-        synchronized (ftEntry) {
-            if (FileMode.WRITE.equals(mode) && ftEntry.inode.count <= 1) {
-                if (!truncate(ftEntry)) {
-                    close(ftEntry);
-                    return null;
+        // Wait for readers or a writer of the file without holding up the
+        // rest of the file system or the journal.
+        fileTable.waitForAccess(ftEntry);
+
+        // In write only mode the rest of the file should be freed.  A writer
+        // has the file to itself, so no one else is reading it.
+        if (FileMode.WRITE.equals(mode)) {
+            Journal.begin();
+            try {
+                lock(entryLock(ftEntry));
+                try {
+                    if (!truncate(ftEntry)) {
+                        close(ftEntry);
+                        return null;
+                    }
                 }
+                finally {
+                    entryLock(ftEntry).unlock();
+                }
+            }
+            finally {
+                Journal.end();
             }
         }
 
         return ftEntry;
     }
 
+    /**
+     * Finds or creates the file and queues a file table entry for it.  A
+     * file that exists only needs the directory for reading, so opens of
+     * different files go on together.  Must not be called while holding
+     * only the read lock of the directory unless the file exists.
+     */
+    private FileTableEntry allocateEntry(String fileName, String mode) {
+        lock(directoryLock.readLock());
+        try {
+            if (FileMode.READ.equals(mode) || root.namei(fileName) >= 0) {
+                return fileTable.falloc(fileName, mode);
+            }
+        }
+        finally {
+            directoryLock.readLock().unlock();
+        }
+
+        // Creating the file changes the directory.  falloc looks the name up
+        // again in case another thread created it meanwhile.  The new entry
+        // is logged in the same operation as the new inode.
+        lock(directoryLock.writeLock());
+        try {
+            FileTableEntry ftEntry = fileTable.falloc(fileName, mode);
+            if (root.isDirty() && !syncRootToDisk()) {
+                SysLib.cerr("ERROR: could not sync root directory.\n");
+            }
+            return ftEntry;
+        }
+        finally {
+            directoryLock.writeLock().unlock();
+        }
+    }
+
     /**
      * Closes the file table entry.
      */
     public boolean close(FileTableEntry ftEntry) {
-        synchronized (ftEntry) {
-            ftEntry.count--;
-            if (ftEntry.count == 0) {
-                return fileTable.ffree(ftEntry);
+        Journal.begin();
+        try {
+            lock(entryLock(ftEntry));
+            try {
+                ftEntry.count--;
+                if (ftEntry.count == 0) {
+                    // The last close gives back blocks preallocated past the end of the file.
+                    if (ftEntry.inode.count <= 1) {
+                        releaseUnusedBlocks(ftEntry);
+                    }
+                    return fileTable.ffree(ftEntry);
+                }
+                else {
+                    return true;
+                }
             }
-            else {
-                return true;
+            finally {
+                entryLock(ftEntry).unlock();
             }
         }
+        finally {
+            Journal.end();
+        }
     }
 
     /**
      * Get the size of the file table entry.
      */
     public int fsize(FileTableEntry ftEntry) {
-        synchronized (ftEntry) {
+        lock(entryLock(ftEntry));
+        try {
             return ftEntry.inode.length;
         }
+        finally {
+            entryLock(ftEntry).unlock();
+        }
     }
 
     /**
@@ -149,41 +460,78 @@ public class FileSystem {
      * @return How many bytes were read into buffer or -1 on error.
      */
     public int read(FileTableEntry ftEntry, byte[] buffer) {
-        synchronized (ftEntry) {
+        return readv(ftEntry, new byte[][] { buffer });
+    }
+
+    /**
+     * Reads data into each of the buffers in turn starting at the current
+     * seek position.  The seek position will be changed based on how much
+     * is read.
+     *
+     * @param ftEntry The file to read from
+     * @param buffers The arrays to read data into
+     * @return How many bytes were read in total or -1 on error.
+     */
+    public int readv(FileTableEntry ftEntry, byte[][] buffers) {
+        lock(entryLock(ftEntry));
+        try {
             if (!FileMode.isReadable(ftEntry.mode)) {
                 return Kernel.ERROR;
             }
-            byte[] blockBuffer = new byte[Disk.blockSize];
-
-            int ftRemain = ftEntry.inode.length - ftEntry.seekPtr;
-            int nToRead = Math.min(ftRemain, buffer.length);
-            int target = ftEntry.seekPtr + nToRead;
-            int bufferPos = 0;
-
-            while (ftEntry.seekPtr < target) {
-
-                // Find and read in a block from disk.
-                int blockNo = ftEntry.inode.findTargetBlock(ftEntry.seekPtr);
-                if (blockNo < 0) {
-                    return Kernel.ERROR;
-                }
-                if (SysLib.rawread(blockNo, blockBuffer) < 0) {
-                    return Kernel.ERROR;
+            byte[] blockBuffer = bufferPool.acquire();
+            try {
+                int total = 0;
+                for (byte[] buffer : buffers) {
+                    int nRead = readBuffer(ftEntry, buffer, blockBuffer);
+                    if (nRead < 0) {
+                        return Kernel.ERROR;
+                    }
+                    total += nRead;
+                    if (nRead < buffer.length) {
+                        // The end of the file was reached.
+                        break;
+                    }
                 }
+                return total;
+            }
+            finally {
+                bufferPool.release(blockBuffer);
+            }
+        }
+        finally {
+            entryLock(ftEntry).unlock();
+        }
+    }
 
-                // Copy content from block buffer into the buffer.
-                int offset = ftEntry.seekPtr % Disk.blockSize;
-                int len = Math.min(nToRead - bufferPos, blockBuffer.length - offset);
+    private int readBuffer(FileTableEntry ftEntry, byte[] buffer, byte[] blockBuffer) {
+        int ftRemain = ftEntry.inode.length - ftEntry.seekPtr;
+        int nToRead = Math.min(ftRemain, buffer.length);
+        int target = ftEntry.seekPtr + nToRead;
+        int bufferPos = 0;
 
-                System.arraycopy(blockBuffer, offset, buffer, bufferPos, len);
+        while (ftEntry.seekPtr < target) {
 
-                // Update the seek position.
-                ftEntry.seekPtr += len;
-                bufferPos += len;
+            // Find and read in a block from disk.
+            int blockNo = ftEntry.inode.findTargetBlock(ftEntry.seekPtr);
+            if (blockNo < 0) {
+                return Kernel.ERROR;
             }
+            if (readBlock(ftEntry, blockNo, blockBuffer) < 0) {
+                return Kernel.ERROR;
+            }
+
+            // Copy content from block buffer into the buffer.
+            int offset = ftEntry.seekPtr % Disk.blockSize;
+            int len = Math.min(nToRead - bufferPos, blockBuffer.length - offset);
 
-            return bufferPos;
+            System.arraycopy(blockBuffer, offset, buffer, bufferPos, len);
+
+            // Update the seek position.
+            ftEntry.seekPtr += len;
+            bufferPos += len;
         }
+
+        return bufferPos;
     }
 
     /**
@@ -194,46 +542,175 @@ public class FileSystem {
      * @return The number of bytes read or -1 on error.
      */
     public int write(FileTableEntry ftEntry, byte[] buffer) {
-        synchronized (ftEntry) {
-            if (!FileMode.isWritable(ftEntry.mode)) {
+        return writev(ftEntry, new byte[][] { buffer });
+    }
+
+    /**
+     * Writes the data from each of the buffers in turn into the given file.
+     * The buffers are written in chunks of up to WRITE_CHUNK_BLOCKS blocks,
+     * each one journal operation, so that a large write never changes more
+     * index blocks than the journal holds.  The blocks for a chunk are
+     * reserved together.
+     *
+     * @param ftEntry The file to write to.
+     * @param buffers The data to write.
+     * @return The number of bytes written in total or -1 on error.
+     */
+    public int writev(FileTableEntry ftEntry, byte[][] buffers) {
+        // The buffer and the offset in it where the next chunk starts.
+        int[] next = { 0, 0 };
+        int total = 0;
+        do {
+            int written = writeChunk(ftEntry, buffers, next);
+            if (written < 0) {
                 return Kernel.ERROR;
             }
+            total += written;
+        } while (next[0] < buffers.length);
+        return total;
+    }
 
-            int bufferPos = 0;
-            byte[] blockBuffer = new byte[Disk.blockSize];
-
-            while (bufferPos < buffer.length) {
-                short blockId = getBlockId(ftEntry);
-                if (blockId < 0) {
+    /**
+     * Writes up to WRITE_CHUNK_BLOCKS blocks of the buffers as one journal
+     * operation, starting at the buffer and offset in next, and moves next
+     * past what was written.
+     */
+    private int writeChunk(FileTableEntry ftEntry, byte[][] buffers, int[] next) {
+        Journal.begin();
+        try {
+            lock(entryLock(ftEntry));
+            try {
+                if (!FileMode.isWritable(ftEntry.mode)) {
                     return Kernel.ERROR;
                 }
+                superBlock.markDirty();
 
-                int offset = ftEntry.seekPtr % Disk.blockSize;
-                int len = Math.min(buffer.length - bufferPos,  Disk.blockSize - offset);
+                int maxLength = WRITE_CHUNK_BLOCKS * Disk.blockSize;
+                int length = 0;
+                for (int i = next[0], offset = next[1]; i < buffers.length && length < maxLength; i++, offset = 0) {
+                    length += Math.min(buffers[i].length - offset, maxLength - length);
+                }
 
-                if (SysLib.rawread(blockId, blockBuffer) == Kernel.ERROR) {
-                    return Kernel.ERROR;
+                // Reserve every block this chunk adds to the file in one contiguous
+                // run rather than taking them one at a time from the allocator.
+                int newBlocks = countMissingBlocks(ftEntry.inode, ftEntry.seekPtr, length);
+                if (newBlocks > 0 && FileMode.APPEND.equals(ftEntry.mode)) {
+                    newBlocks += APPEND_PREALLOC_BLOCKS;
+                }
+                Deque<Integer> reserved = reserveBlocks(newBlocks);
+                byte[] blockBuffer = bufferPool.acquire();
+                try {
+                    int total = 0;
+                    while (total < length) {
+                        byte[] buffer = buffers[next[0]];
+                        int len = Math.min(buffer.length - next[1], length - total);
+                        if (writeBuffer(ftEntry, buffer, next[1], len, blockBuffer, reserved) < 0) {
+                            return Kernel.ERROR;
+                        }
+                        total += len;
+                        next[1] += len;
+                        if (next[1] == buffer.length) {
+                            next[0]++;
+                            next[1] = 0;
+                        }
+                    }
+                    // Empty buffers left at the end have nothing to write.
+                    while (next[0] < buffers.length && buffers[next[0]].length == 0) {
+                        next[0]++;
+                    }
+
+                    // Keep the rest of an append's reservation at the end of the file.
+                    if (FileMode.APPEND.equals(ftEntry.mode)) {
+                        preallocate(ftEntry, reserved);
+                    }
+                    return total;
                 }
+                finally {
+                    // Write the inode once for the whole chunk.  It is journaled and a
+                    // commit writes back the cache first, so the inode can't reach
+                    // the disk before its data.
+                    if (ftEntry.inode.dirty) {
+                        ftEntry.inode.toDisk(ftEntry.iNumber);
+                    }
 
-                System.arraycopy(buffer, bufferPos, blockBuffer, offset, len);
-                if (SysLib.rawwrite(blockId,  blockBuffer) == Kernel.ERROR) {
+                    // Give back whatever was reserved but not used.
+                    for (int block : reserved) {
+                        superBlock.returnBlock(block);
+                    }
+                    bufferPool.release(blockBuffer);
+                }
+            }
+            finally {
+                entryLock(ftEntry).unlock();
+            }
+        }
+        finally {
+            Journal.end();
+        }
+    }
+
+    private int writeBuffer(FileTableEntry ftEntry, byte[] buffer, int bufferPos, int length,
+            byte[] blockBuffer, Deque<Integer> reserved) {
+        int end = bufferPos + length;
+        while (bufferPos < end) {
+            int blockId = getBlockId(ftEntry, reserved);
+            if (blockId < 0) {
+                return Kernel.ERROR;
+            }
+
+            int offset = ftEntry.seekPtr % Disk.blockSize;
+            int len = Math.min(end - bufferPos,  Disk.blockSize - offset);
+
+            // Only read the block when part of it has to be kept.  A block that is
+            // overwritten completely or that lies past the end of the file has
+            // nothing worth reading.
+            if (len < Disk.blockSize) {
+                if (ftEntry.seekPtr - offset >= ftEntry.inode.length) {
+                    Arrays.fill(blockBuffer, (byte) 0);
+                }
+                else if (readBlock(ftEntry, blockId, blockBuffer) == Kernel.ERROR) {
                     return Kernel.ERROR;
                 }
+            }
+
+            System.arraycopy(buffer, bufferPos, blockBuffer, offset, len);
+            if (writeBlock(ftEntry, blockId, blockBuffer) == Kernel.ERROR) {
+                return Kernel.ERROR;
+            }
 
-                ftEntry.seekPtr += len;
-                bufferPos += len;
+            ftEntry.seekPtr += len;
+            bufferPos += len;
 
-                if (ftEntry.seekPtr > ftEntry.inode.length) {
+            if (ftEntry.seekPtr > ftEntry.inode.length) {
+                // A sync may be writing the inode out meanwhile.
+                synchronized (ftEntry.inode) {
                     ftEntry.inode.length = ftEntry.seekPtr;
+                    ftEntry.inode.dirty = true;
                 }
-
-                // TODO: It seems like this should be able to fail.
-                // but thread os inode returns void.
-                ftEntry.inode.toDisk(ftEntry.iNumber);
             }
+        }
+        return length;
+    }
 
-            return bufferPos;
+    /**
+     * Reads a block of the file.  The directory is metadata, so its blocks
+     * go through the journal.
+     */
+    private int readBlock(FileTableEntry ftEntry, int blockId, byte[] buffer) {
+        if (ftEntry.iNumber == 0) {
+            return Journal.read(blockId, buffer);
         }
+        return SysLib.cread(blockId, buffer);
+    }
+
+    /**
+     * Writes a block of the file, through the journal for the directory.
+     */
+    private int writeBlock(FileTableEntry ftEntry, int blockId, byte[] buffer) {
+        if (ftEntry.iNumber == 0) {
+            return Journal.write(blockId, buffer);
+        }
+        return SysLib.cwrite(blockId, buffer);
     }
 
     /**
@@ -243,41 +720,195 @@ public class FileSystem {
      * @return true on success or false on error.
      */
     public boolean delete(String fileName) {
-        // Open up the file.
-        // If this is the only instance opening the file it's
-        // blocks will be cleared out.
-        FileTableEntry ftEntry = open(fileName, FileMode.WRITE);
-        if (ftEntry == null) {
-            return false;
-        }
-
-        // Lock the whole file system - the inode and iNumber should only be
-        // mutated in the ftEntry within a file system lock.
-        synchronized (this) {
-            // Get the inode to remove.
-            short iNumber = -1;
+        Journal.begin();
+        try {
+            // Lock the directory - no one can open the file while it is held.
+            lock(directoryLock.writeLock());
             try {
-                if (ftEntry.inode.count > 1) {
-                    // This is already open - do not delete.
+                // Directories are removed with rmdir.
+                short iNumber = root.namei(fileName);
+                if (iNumber < 0 || root.isDirectory(iNumber)) {
                     return false;
                 }
-                iNumber = ftEntry.iNumber;
+                if (fileTable.isLoaded(iNumber)) {
+                    // This is already open - do not delete.  Waiting for it
+                    // to be closed could take forever.
+                    return false;
+                }
+
+                // Open up the file, which clears out its blocks.
+                FileTableEntry ftEntry = open(fileName, FileMode.WRITE);
+                if (ftEntry == null) {
+                    return false;
+                }
+                close(ftEntry);
+
+                // Frees the slot in the directory.
+                if (!root.ifree(iNumber)) {
+                    // Failed to free the slot.
+                    return false;
+                }
+
+                // Write the directory back to disk.
+                syncRootToDisk();
+
+                return true;
             }
             finally {
-                close(ftEntry);
+                directoryLock.writeLock().unlock();
             }
+        }
+        finally {
+            Journal.end();
+        }
+    }
 
-            // Frees the slot in the directory.
-            if (!root.ifree(iNumber)) {
-                // Failed to free the slot.
+    /**
+     * Creates a directory.  The parent directory must already exist.
+     *
+     * @param path The path of the new directory.
+     * @return true on success or false on error.
+     */
+    public boolean mkdir(String path) {
+        Journal.begin();
+        lock(directoryLock.writeLock());
+        try {
+            superBlock.markDirty();
+            short iNumber = root.mkdir(path);
+            if (iNumber < 0) {
                 return false;
             }
 
-            // Write the directory back to disk.
+            // Mark the directory's own inode as in use.
+            superBlock.initializeInode(iNumber);
+            Inode inode = new Inode();
+            inode.flag = FileTable.DIRECTORY;
+            inode.toDisk(iNumber);
+
             syncRootToDisk();
+            return true;
+        }
+        finally {
+            directoryLock.writeLock().unlock();
+            Journal.end();
+        }
+    }
 
+    /**
+     * Removes an empty directory.
+     *
+     * @param path The path of the directory.
+     * @return true on success or false on error.
+     */
+    public boolean rmdir(String path) {
+        Journal.begin();
+        lock(directoryLock.writeLock());
+        try {
+            short iNumber = root.namei(path);
+            if (iNumber <= 0 || !root.isDirectory(iNumber)) {
+                return false;
+            }
+            superBlock.markDirty();
+            if (!root.ifree(iNumber)) {
+                // Not empty.
+                return false;
+            }
+
+            Inode inode = new Inode();
+            inode.flag = FileTable.UNUSED;
+            inode.toDisk(iNumber);
+
+            syncRootToDisk();
             return true;
         }
+        finally {
+            directoryLock.writeLock().unlock();
+            Journal.end();
+        }
+    }
+
+    /**
+     * Lists a directory.  Names of subdirectories end with "/".
+     *
+     * @param path The path of the directory.
+     * @return The names in the directory or null if it isn't a directory.
+     */
+    public String[] readdir(String path) {
+        lock(directoryLock.readLock());
+        try {
+            return root.list(root.namei(path));
+        }
+        finally {
+            directoryLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Starts checking the bitmap against the inodes.
+     */
+    public void beginCheck() {
+        superBlock.beginCheck();
+    }
+
+    /**
+     * Verifies the blocks of one inode for a check started by beginCheck.
+     * The inode is locked so it can't be opened meanwhile.
+     *
+     * @return false if the inode is open and has to be checked later.
+     */
+    public boolean checkInode(short iNumber) {
+        FileTable fileTable = this.fileTable;
+        Journal.begin();
+        try {
+            synchronized (fileTable.getInodeLock(iNumber)) {
+                if (!superBlock.isChecking() || !superBlock.isInodeInitialized(iNumber)) {
+                    return true;
+                }
+                if (fileTable.isLoaded(iNumber)) {
+                    return false;
+                }
+
+                Inode inode = new Inode(iNumber);
+                if (inode.flag == FileTable.UNUSED) {
+                    return true;
+                }
+                int repaired = 0;
+                for (int block : inode.getBlocks()) {
+                    if (superBlock.verifyBlock(block)) {
+                        repaired++;
+                    }
+                }
+                if (repaired > 0) {
+                    SysLib.cerr("threadOS: inode " + iNumber + " had " + repaired + " blocks marked free.\n");
+                }
+                return true;
+            }
+        }
+        finally {
+            Journal.end();
+        }
+    }
+
+    /**
+     * Finishes a check once every inode has been verified.
+     *
+     * @return The number of blocks no file pointed to, which are now free.
+     */
+    public int endCheck() {
+        Journal.begin();
+        try {
+            return superBlock.endCheck();
+        }
+        finally {
+            Journal.end();
+        }
+    }
+
+    /**
+     * Gives up on a check without changing the bitmap further.
+     */
+    public void abandonCheck() {
+        superBlock.abandonCheck();
     }
 
     /**
@@ -300,7 +931,8 @@ public class FileSystem {
      * @return The new postion or Kernel.ERROR on error.
      */
     public int seek(FileTableEntry ftEntry, int offset, int whence) {
-        synchronized (ftEntry) {
+        lock(entryLock(ftEntry));
+        try {
             int absOffset = -1;
 
             switch (whence) {
@@ -327,93 +959,254 @@ public class FileSystem {
             ftEntry.seekPtr = absOffset;
             return absOffset;
         }
+        finally {
+            entryLock(ftEntry).unlock();
+        }
     }
 
-    private short getBlockId(FileTableEntry ftEntry) {
-        short blockId = (short) ftEntry.inode.findTargetBlock(ftEntry.seekPtr);
+    private int getBlockId(FileTableEntry ftEntry, Deque<Integer> reserved) {
+        int blockId = ftEntry.inode.findTargetBlock(ftEntry.seekPtr);
         if (blockId >= 0) {
             return blockId;
         }
 
-        // Create a new block
-        blockId = (short) superBlock.getFreeBlock();
+        // Use the next reserved block or create a new block.
+        blockId = reserved.isEmpty() ? superBlock.getFreeBlock() : reserved.poll();
         if (blockId < 0) {
             return Kernel.ERROR;
         }
 
         // Add the block to the inode.
-        int rc = ftEntry.inode.registerTargetBlock(ftEntry.seekPtr, blockId);
+        if (!registerBlock(ftEntry.inode, ftEntry.seekPtr, blockId)) {
+            superBlock.returnBlock(blockId);
+            return Kernel.ERROR;
+        }
+        return blockId;
+    }
+
+    /**
+     * Adds a data block to the inode at the given offset, allocating the
+     * index block if it is needed.
+     *
+     * @return true if the block was registered.
+     */
+    private boolean registerBlock(Inode inode, int offset, int blockId) {
+        int rc = inode.registerTargetBlock(offset, blockId);
         switch (rc) {
             case Inode.NoError:
-                return blockId;
+                return true;
             case Inode.ErrorBlockRegistered:
                 // The seek pointer position already had a block allocated.
-                return Kernel.ERROR;
+                return false;
             case Inode.ErrorPrecBlockUnused:
                 // TODO: what is this condition?
-                return Kernel.ERROR;
+                return false;
             case Inode.ErrorIndirectNull:
-                // The block should be put in the indirect block but the indirect block hasn't
-                // been allocated.
-                short indirectBlockId = (short) superBlock.getFreeBlock();
-                if (indirectBlockId < 0 || !ftEntry.inode.registerIndexBlock(indirectBlockId)) {
-                    // Give back the previously allocated data block(s).
-                    superBlock.returnBlock(blockId);
-                    if (indirectBlockId >= 0) {
-                        superBlock.returnBlock(indirectBlockId);
+                // The block belongs in an index block that hasn't been allocated.
+                // Large files may need several levels of index blocks.
+                while (rc == Inode.ErrorIndirectNull) {
+                    int indexBlockId = superBlock.getFreeBlock();
+                    if (indexBlockId < 0 || !inode.registerIndexBlock(offset, indexBlockId)) {
+                        // Give back the index block.
+                        if (indexBlockId >= 0) {
+                            superBlock.returnBlock(indexBlockId);
+                        }
+                        return false;
                     }
-                    return Kernel.ERROR;
+                    rc = inode.registerTargetBlock(offset, blockId);
                 }
-                if (ftEntry.inode.registerTargetBlock(ftEntry.seekPtr, blockId) != Inode.NoError) {
-                    return Kernel.ERROR;
-                }
-                return blockId;
+                return rc == Inode.NoError;
+            case Inode.ErrorOutOfRange:
+                // The file has reached its maximum size.
+                return false;
             default:
                 throw new FileSystemException("Unknown response from register target block: " + rc);
         }
     }
 
-    private boolean truncate(FileTableEntry ftEntry) {
-        // Free the direct blocks.
-        for (int i = 0; i < ftEntry.inode.direct.length; i++) {
-            int block = ftEntry.inode.direct[i];
-            if (block >= 0) {
-                if (!superBlock.returnBlock(block)) {
-                    SysLib.cerr("ERROR: failed to return block: " + block);
-                }
-                ftEntry.inode.direct[i] = -1;
+    /**
+     * Counts the blocks in the byte range that are not allocated yet.
+     */
+    private int countMissingBlocks(Inode inode, int offset, int length) {
+        int missing = 0;
+        for (int pos = offset - offset % Disk.blockSize; pos < offset + length; pos += Disk.blockSize) {
+            if (inode.findTargetBlock(pos) < 0) {
+                missing++;
             }
         }
+        return missing;
+    }
 
-        // Free any extra index blocks from the extended section.
-        byte[] indexBlockData = ftEntry.inode.unregisterIndexBlock();
-        if (indexBlockData != null) {
-            for (int i = 0; i < indexBlockData.length; i += 2) {
-                int block = SysLib.bytes2short(indexBlockData, i);
-                if (block >= 0) {
-                    if (!superBlock.returnBlock(block)) {
-                        SysLib.cerr("ERROR: failed to return block: " + block);
-                    }
-                }
+    /**
+     * Reserves count blocks as a single contiguous run if possible, or as
+     * a few shorter runs when the free space is fragmented.  Fewer blocks
+     * are returned if the disk doesn't have count free blocks.
+     */
+    private Deque<Integer> reserveBlocks(int count) {
+        Deque<Integer> blocks = new ArrayDeque<Integer>(count);
+        int runLength = count;
+        while (blocks.size() < count && runLength > 0) {
+            int want = Math.min(runLength, count - blocks.size());
+            int start = superBlock.getFreeBlocks(want);
+            if (start < 0) {
+                runLength /= 2;
+                continue;
+            }
+            for (int i = 0; i < want; i++) {
+                blocks.add(start + i);
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Registers reserved blocks after the current end of the file.  Blocks
+     * that can't be registered are left in reserved.
+     */
+    private void preallocate(FileTableEntry ftEntry, Deque<Integer> reserved) {
+        int pos = roundUpToBlock(ftEntry.inode.length);
+        while (!reserved.isEmpty() && ftEntry.inode.findTargetBlock(pos) < 0) {
+            if (!registerBlock(ftEntry.inode, pos, reserved.peek())) {
+                return;
+            }
+            reserved.poll();
+            pos += Disk.blockSize;
+        }
+    }
+
+    /**
+     * Returns the blocks allocated past the end of the file.
+     */
+    private void releaseUnusedBlocks(FileTableEntry ftEntry) {
+        Inode inode = ftEntry.inode;
+        int[] dataBlocks = inode.unregisterTargetBlocks(roundUpToBlock(inode.length));
+
+        // Drop the index blocks that no longer cover any of the file.
+        int[] indexBlocks = inode.unregisterIndexBlocks(inode.length);
+
+        // Blocks are only freed once the inode no longer points to them, so
+        // a crash can leak them but never leave them in two files.
+        if (inode.dirty) {
+            inode.toDisk(ftEntry.iNumber);
+        }
+        returnBlocks(dataBlocks);
+        returnBlocks(indexBlocks);
+    }
+
+    private static int roundUpToBlock(int offset) {
+        return (offset + Disk.blockSize - 1) / Disk.blockSize * Disk.blockSize;
+    }
+
+    private void returnBlocks(int[] blocks) {
+        for (int block : blocks) {
+            if (!superBlock.returnBlock(block)) {
+                SysLib.cerr("ERROR: failed to return block: " + block);
             }
         }
+    }
 
-        // Save the inode back.
-        ftEntry.inode.toDisk(ftEntry.iNumber);
+    private boolean truncate(FileTableEntry ftEntry) {
+        // Free the data blocks and then the index blocks that pointed to them,
+        // after the inode that no longer points to them has been saved.
+        int[] dataBlocks = ftEntry.inode.unregisterTargetBlocks(0);
+        int[] indexBlocks = ftEntry.inode.unregisterIndexBlocks(0);
+        synchronized (ftEntry.inode) {
+            ftEntry.inode.length = 0;
+            ftEntry.inode.toDisk(ftEntry.iNumber);
+        }
 
+        returnBlocks(dataBlocks);
+        returnBlocks(indexBlocks);
         return true;
     }
 
+    /**
+     * Takes a lock of the directory or of a file table entry.  A thread that
+     * has to wait for it lets the scheduler run other threads meanwhile.
+     */
+    private static void lock(Lock lock) {
+        if (!lock.tryLock()) {
+            Kernel.block();
+            try {
+                lock.lock();
+            }
+            finally {
+                Kernel.unblock();
+            }
+        }
+    }
+
+    /**
+     * The lock of a file table entry, see entryLocks.
+     */
+    private ReentrantLock entryLock(FileTableEntry ftEntry) {
+        synchronized (entryLocks) {
+            ReentrantLock lock = entryLocks.get(ftEntry);
+            if (lock == null) {
+                lock = new ReentrantLock();
+                entryLocks.put(ftEntry, lock);
+            }
+            return lock;
+        }
+    }
+
+    /**
+     * Opens "/" to read or write the directory.  Users can't open
+     * directories, so nothing but the file system ever holds its inode
+     * lock, and waiting for it can't deadlock with the directory lock.
+     */
+    private FileTableEntry openRoot(String mode) {
+        FileTableEntry ftEntry;
+        Journal.begin();
+        try {
+            if (!FileMode.READ.equals(mode)) {
+                superBlock.markDirty();
+            }
+            lock(directoryLock.readLock());
+            try {
+                ftEntry = fileTable.fallocRoot(mode);
+            }
+            finally {
+                directoryLock.readLock().unlock();
+            }
+        }
+        finally {
+            Journal.end();
+        }
+        fileTable.waitForAccess(ftEntry);
+        return ftEntry;
+    }
+
     private boolean syncRootToDisk() {
-        FileTableEntry rootFtEntry = open("/", "w");
+        // Open without truncating so that unchanged blocks stay where they are.
+        FileTableEntry rootFtEntry = openRoot(FileMode.READ_WRITE);
         if (rootFtEntry == null) {
             return false;
         }
         try {
             byte[] data = root.directory2bytes();
-            if (write(rootFtEntry, data) < 0) {
-                return false;
+            if (fsize(rootFtEntry) != data.length) {
+                // Not saved with this layout yet, write the whole directory.
+                if (fsize(rootFtEntry) > data.length && !truncate(rootFtEntry)) {
+                    return false;
+                }
+                if (write(rootFtEntry, data) < 0) {
+                    return false;
+                }
             }
+            else {
+                // Rewrite only the blocks that hold changed entries.
+                BitSet blocks = root.getDirtyBlocks(Disk.blockSize);
+                for (int b = blocks.nextSetBit(0); b >= 0; b = blocks.nextSetBit(b + 1)) {
+                    int start = b * Disk.blockSize;
+                    int end = Math.min(data.length, start + Disk.blockSize);
+                    seek(rootFtEntry, start, Seek.SET);
+                    if (write(rootFtEntry, Arrays.copyOfRange(data, start, end)) < 0) {
+                        return false;
+                    }
+                }
+            }
+            root.clearDirty();
         }
         finally {
             close(rootFtEntry);
@@ -421,8 +1214,22 @@ public class FileSystem {
         return true;
     }
     
+    /**
+     * Whether "/" was saved with the current directory layout, so that only
+     * changed blocks of it need to be written.
+     */
+    private boolean isRootLayoutCurrent() {
+        FileTableEntry dirEntry = openRoot(FileMode.READ);
+        try {
+            return fsize(dirEntry) == root.directory2bytes().length;
+        }
+        finally {
+            close(dirEntry);
+        }
+    }
+
     private boolean syncRootFromDisk() {
-        FileTableEntry dirEntry = open("/", "r");
+        FileTableEntry dirEntry = openRoot(FileMode.READ);
         try {
             int dirSize = fsize(dirEntry);
             if (dirSize > 0) {
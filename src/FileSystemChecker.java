@@ -0,0 +1,87 @@
+import java.util.*;
+
+/**
+ * Checks the block bitmap against the inodes after a mount that didn't
+ * follow a clean sync.
+ *
+ * The check runs beside the programs using the disk.  It looks at a few
+ * inodes at a time with the file system locked and sleeps in between, so
+ * it never holds up the file system for long.  Inodes that are open are
+ * checked again later.  Blocks that a file points to but the bitmap has as
+ * free are allocated again straight away.  Blocks that are allocated but
+ * that no file points to are only freed once every inode has been checked.
+ */
+public class FileSystemChecker extends Thread {
+
+    /** The inodes checked each time the file system is locked. */
+    private static final int INODES_PER_STEP = 16;
+
+    /** The pause between steps in milliseconds. */
+    private static final int STEP_DELAY = 10;
+
+    /** The pause before checking open inodes again in milliseconds. */
+    private static final int RETRY_DELAY = 500;
+
+    /** The passes over open inodes before the check gives up. */
+    private static final int MAX_PASSES = 120;
+
+    private final FileSystem fileSystem;
+
+    private final int inodes;
+
+    /**
+     * Create the checker.
+     *
+     * @param fileSystem The file system to check.
+     * @param inodes The number of inodes on the disk.
+     */
+    public FileSystemChecker(FileSystem fileSystem, int inodes) {
+        super("fsck");
+        this.fileSystem = fileSystem;
+        this.inodes = inodes;
+        setDaemon(true);
+    }
+
+    public void run() {
+        fileSystem.beginCheck();
+
+        List<Short> pending = new ArrayList<Short>(inodes);
+        for (short iNumber = 0; iNumber < inodes; iNumber++) {
+            pending.add(iNumber);
+        }
+
+        for (int pass = 0; pass < MAX_PASSES && !pending.isEmpty(); pass++) {
+            if (pass > 0) {
+                pause(RETRY_DELAY);
+            }
+            List<Short> open = new ArrayList<Short>();
+            for (int i = 0; i < pending.size(); i++) {
+                if (!fileSystem.checkInode(pending.get(i))) {
+                    open.add(pending.get(i));
+                }
+                if ((i + 1) % INODES_PER_STEP == 0) {
+                    pause(STEP_DELAY);
+                }
+            }
+            pending = open;
+        }
+
+        if (pending.isEmpty()) {
+            int freed = fileSystem.endCheck();
+            SysLib.cerr("threadOS: disk check done, " + freed + " lost blocks freed.\n");
+        }
+        else {
+            fileSystem.abandonCheck();
+            SysLib.cerr("threadOS: disk check gave up, " + pending.size() + " inodes stayed open.\n");
+        }
+    }
+
+    private static void pause(int milliseconds) {
+        try {
+            Thread.sleep(milliseconds);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
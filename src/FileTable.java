@@ -1,15 +1,49 @@
 import java.util.*;
+import java.util.concurrent.*;
+
+// Opening a file is done in two steps: falloc finds or creates the inode
+// and queues the entry for its lock while the caller holds the directory
+// lock, then waitForAccess waits for the lock on its own, so that a file
+// held by a writer doesn't hold up opens of other files.
+//
+// The table has no lock of its own.  Entries are kept in a concurrent set
+// and an inode's open count, loading and saving are guarded by one of a
+// set of striped inode locks, so opens and closes of different files
+// don't wait for each other.
 
 public class FileTable {
 
 
-   private Vector table;         // the actual entity of this file table
-   private Directory dir;        // the root directory 
+   private Set<FileTableEntry> table; // the actual entity of this file table
+   private Directory dir;        // the root directory
+   private SuperBlock superBlock; // knows which inode blocks are initialized
+   private ConcurrentMap<Short, OpenInode> inodes; // in-memory inodes by iNumber
+   private Object[] inodeLocks;  // striped locks of the inodes by iNumber
 
+   private final static int INODE_LOCKS = 64;
 
-   public FileTable( Directory directory ) { // constructor
-      table = new Vector( );     // instantiate a file (structure) table
+
+   // an inode in memory and its readers-writer lock;
+   // its open count is the inode's count
+   private static class OpenInode {
+	final Inode inode;
+	final InodeLock lock = new InodeLock();
+
+	OpenInode( Inode inode ) {
+		this.inode = inode;
+	}
+   }
+
+
+   public FileTable( Directory directory, SuperBlock superBlock ) { // constructor
+      // instantiate a file (structure) table; entries are compared by identity
+      table = Collections.newSetFromMap(new ConcurrentHashMap<FileTableEntry, Boolean>( ));
       dir = directory;           // receive a reference to the Director
+      this.superBlock = superBlock;
+      inodes = new ConcurrentHashMap<Short, OpenInode>( ); // only referenced inodes
+      inodeLocks = new Object[INODE_LOCKS];
+      for ( int i = 0; i < INODE_LOCKS; i++ )
+         inodeLocks[i] = new Object( );
    }                             // from the file system
 
 	//flags; will need to match flags in Inode.java
@@ -17,11 +51,14 @@ public class FileTable {
 	public final static int USED = 1;
 	public final static int READ = 2;
 	public final static int WRITE = 3;
+	public final static int DIRECTORY = 4;
 
 
    // major public methods
-   public synchronized FileTableEntry falloc( String filename, String mode ) {
-      //--allocate a new file (structure) table entry for this file name
+   public FileTableEntry falloc( String filename, String mode ) {
+      //--allocate a new file (structure) table entry for this file name;
+      //--waitForAccess must be called before the entry is used.
+      //--the caller holds the directory lock, for writing if a file may be created
 	FileTableEntry e;
 
 	//temp variables
@@ -29,112 +66,93 @@ public class FileTable {
 	Inode inode = null;
 
       //--allocate/retrieve and register the corresponding inode using dir
-	while(true)
-	{
+	//get inumber by checking directory
+	inumber = dir.namei(filename); //search for the filename
 
-		//get inumber by checking directory
-		inumber = dir.namei(filename); //search for the filename
-
-		if(inumber >= 0)	//file is in memory; mapped in directory
-		{
-			//get iNode
-			inode = new Inode(inumber);
+	//directories, "/" included, are not opened as files; the file system
+	//opens "/" for itself with fallocRoot
+	if(dir.isDirectory(inumber))
+		return null;
 
-			//mode r; want to read
-			if(mode.equals("r"))
-			{
-				//if flag is read, used, or unused, read the file
-				if(inode.flag == READ || inode.flag == USED
-					|| inode.flag == UNUSED)
-				{
-					inode.flag = READ; //thread is reading file
-					break;
-				}
-
-				//some thread is writing to the file; wait
-				else	
-				{
-					try
-					{
-						wait();
-					} catch (InterruptedException z){}
-					break;
-				}
-			}
-
-			else	//mode w, w+, or a; request some kind of write
-			{
-				//if flag is used or unused, write to the file
-				if(inode.flag == USED || inode.flag == UNUSED)
-				{
-					inode.flag = WRITE; //no wait, start writing
-					break;
-				}
-
-				//another thread is using the file; wait
-				else	
-				{
-					try
-					{
-						wait();
-					} catch (InterruptedException z){}
-					break;
-				}
-			}
-		}
+	if(inumber < 0)	//file not mapped in directory
+	{
+		if(mode.equals("r"))	//trying to read a file that doesn't exist.
+			return null;
 
-		//file not in memory; not mapped in directory
-		else
+		inumber = dir.ialloc(filename);	//get an iNumber from the directory
+		if (inumber < 0)
 		{
-			if(mode != "r")
-			{
-				inumber = dir.ialloc(filename);	//get an iNumber from the directory
-				if (inumber < 0)
-				{
-					// Error allocating file.
-					return null;
-				}
-				inode = new Inode();	//allocate new Inode
-				break;
-			}
-			else	//trying to read a file that doesn't exist.
-				return null;
+			// Error allocating file.
+			return null;
 		}
+		superBlock.initializeInode(inumber);	//its block may not be formatted yet
+		inode = new Inode();	//allocate new Inode
+		inode.toDisk(inumber);	//logged along with its directory entry
 	}
 
-      //--increment this inode's count
-	inode.count++;
-
-      //--immediately write back this inode to the disk
-	inode.toDisk(inumber);
+      //--get the shared iNode and increment its count, which includes
+      //--waiting entries; it stays in memory while the count is above 0
+	inode = reference(inumber, inode);
 
       //--return a reference to this file (structure) table entry
 	e = new FileTableEntry(inode, inumber, mode);
-	table.addElement(e);	//add entry to table
+	table.add(e);	//add entry to table
 	return e;		//return entry
    }
 
 
-   public synchronized boolean ffree( FileTableEntry e ) {
+   public FileTableEntry fallocRoot( String mode ) {
+      //--allocate an entry for "/", which holds the directory itself;
+      //--only the file system reads and writes it, users can't open it
+      //--the caller holds the directory lock
+	FileTableEntry e = new FileTableEntry(reference((short)0, null), (short)0, mode);
+	table.add(e);
+	return e;
+   }
+
+
+   public void waitForAccess( FileTableEntry e ) {
+      // wait until the entry may use its inode: readers share it,
+      // anything that writes has it to itself
+	OpenInode open = inodes.get(e.iNumber);
+
+	if(isReadOnly(e))
+		open.lock.lockRead();
+	else
+		open.lock.lockWrite();
+
+	synchronized(getInodeLock(e.iNumber))
+	{
+		e.inode.flag = (short)(isReadOnly(e) ? READ : WRITE);
+	}
+   }
+
+
+   public boolean ffree( FileTableEntry e ) {
       // receive a file table entry reference
-      // save the corresponding inode to the disk
+      // save the corresponding inode to the disk once it is unreferenced
       // free this file table entry.
       // return true if this file table entry found in my table
 
 	//if element is in table, remove, etc.
-	if( table.removeElement(e) )	//try to remove the entry from the table
+	if( table.remove(e) )	//try to remove the entry from the table
 	{
-		e.inode.count--;
-
-		//if there is a request to use, notify
-		if(e.inode.flag == READ || e.inode.flag == WRITE)
+		synchronized(getInodeLock(e.iNumber))
 		{
-			notify();
-		}
+			e.inode.count--;
+
+			//let the next reader or writer in
+			inodes.get(e.iNumber).lock.unlock(!isReadOnly(e));
 
-		// save the corresponding inode to the disk
-		e.inode.flag = USED;
-		e.inode.toDisk(e.iNumber);
+			//last reference; save the inode if needed and evict it
+			if(e.inode.count == 0)
+			{
+				e.inode.flag = USED;
+				if(e.inode.dirty)
+					e.inode.toDisk(e.iNumber);
+				inodes.remove(e.iNumber);
+			}
+		}
 
 		return true;
 	}
@@ -143,8 +161,84 @@ public class FileTable {
    }
 
 
-   public synchronized boolean fempty( ) {
-      return table.isEmpty( );  // return if table is empty 
+   public void sync( ) {
+      // write back every cached inode that changed since it was loaded;
+      // writers may be changing it, so its monitor is held as well
+	for(Map.Entry<Short, OpenInode> entry : inodes.entrySet())
+	{
+		synchronized(getInodeLock(entry.getKey()))
+		{
+			//skip an inode the last entry closed meanwhile
+			Inode inode = entry.getValue().inode;
+			if(inodes.get(entry.getKey()) != entry.getValue())
+				continue;
+			synchronized(inode)
+			{
+				if(inode.dirty)
+					inode.toDisk(entry.getKey());
+			}
+		}
+	}
+   }
+
+
+   // returns the single in-memory instance of an inode with its count
+   // incremented, loading it if needed; created is the inode of a new file
+   private Inode reference( short inumber, Inode created ) {
+	synchronized(getInodeLock(inumber))
+	{
+		OpenInode open = inodes.get(inumber);
+		if(open == null)
+		{
+			open = new OpenInode(created != null ? created : load(inumber));
+			inodes.put(inumber, open);
+		}
+		open.inode.count++;
+		return open.inode;
+	}
+   }
+
+
+   // the lock guarding an inode's open count and its loading and saving;
+   // the inode can't be opened or closed while it is held
+   public Object getInodeLock( short inumber ) {
+	return inodeLocks[inumber % INODE_LOCKS];
+   }
+
+
+   private Inode load( short inumber ) {
+	Inode inode;
+
+	//blocks a lazy format hasn't written only hold unused inodes
+	if(superBlock.isInodeInitialized(inumber))
+		inode = new Inode(inumber);
+	else
+	{
+		inode = new Inode();
+		inode.flag = UNUSED;
+	}
+
+	//counts and read/write flags only describe open files in memory;
+	//values on disk may be left over from an earlier boot
+	inode.count = 0;
+	if(inode.flag == READ || inode.flag == WRITE)
+		inode.flag = USED;
+	return inode;
+   }
+
+
+   private static boolean isReadOnly( FileTableEntry e ) {
+	return e.mode.equals("r");
+   }
+
+
+   // whether the inode is in memory because a file table entry uses it
+   public boolean isLoaded( short inumber ) {
+      return inodes.containsKey(inumber);
+   }
+
+
+   public boolean fempty( ) {
+      return table.isEmpty( );  // return if table is empty
    }                            // should be called before starting a format
 }
-
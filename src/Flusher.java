@@ -0,0 +1,70 @@
+/**
+ * Writes the file system back to disk in the background.
+ *
+ * Threads no longer sync the file system when they exit.  Instead the
+ * flusher syncs it every interval milliseconds, saving the disk image as
+ * SysLib.sync does, and writes back the journal and cache early once too
+ * many blocks are dirty.  Programs that need their data on the disk at a
+ * given point call SysLib.fsync.
+ */
+public class Flusher extends Thread {
+
+    /** How often the dirty block count is checked in milliseconds. */
+    private static final int CHECK_INTERVAL = 100;
+
+    private final FileSystem fileSystem;
+
+    private final Cache cache;
+
+    /** The time between syncs in milliseconds. */
+    private final int interval;
+
+    /** The dirty blocks that trigger an early write back. */
+    private final int dirtyThreshold;
+
+    /**
+     * Create the flusher.
+     *
+     * @param fileSystem The file system to sync.
+     * @param cache The cache whose dirty blocks are counted.
+     * @param interval The time between syncs in milliseconds.
+     * @param dirtyThreshold The dirty blocks that trigger an early write back.
+     */
+    public Flusher(FileSystem fileSystem, Cache cache, int interval, int dirtyThreshold) {
+        super("flusher");
+        this.fileSystem = fileSystem;
+        this.cache = cache;
+        this.interval = interval;
+        this.dirtyThreshold = dirtyThreshold;
+        setDaemon(true);
+    }
+
+    public void run() {
+        long lastSync = System.currentTimeMillis();
+
+        // Whether blocks were written back since the image was last saved.
+        boolean written = false;
+        while (true) {
+            try {
+                Thread.sleep(Math.min(CHECK_INTERVAL, interval));
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+
+            int dirty = cache.getDirtyCount() + Journal.getPendingCount();
+            if (System.currentTimeMillis() - lastSync >= interval) {
+                if (dirty > 0 || written || fileSystem.isDirty()) {
+                    SysLib.sync();
+                    written = false;
+                }
+                lastSync = System.currentTimeMillis();
+            }
+            else if (dirty >= dirtyThreshold) {
+                // Only write back to the disk; the image is saved on the next interval.
+                fileSystem.sync();
+                written = true;
+            }
+        }
+    }
+}
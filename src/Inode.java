@@ -1,3 +1,6 @@
+import java.util.*;
+import java.util.concurrent.locks.*;
+
 
 
 //simplified version of the Unix inode
@@ -5,136 +8,328 @@
 public class Inode
 {
     public static final int iNodeSize = 32;        //fix to 32 bytes
-    public static final int directSize = 11;       //# of direct pointers
+    public static final int directSize = 3;        //# of direct pointers
+    public static final int indirectLevels = 3;    //single, double and triple indirect
     private static final int NOT_FOUND = -1;
     public static final int NoError = 0;
     public static final int ErrorBlockRegistered = -1;
     public static final int ErrorPrecBlockUnused = -2;
     public static final int ErrorIndirectNull = -3;
+    public static final int ErrorOutOfRange = -4;
+
+    public static final int indexSize = Disk.blockSize / 4;                        //# of pointers per index block
+
+    //layout of the inodes written with 16 bit block pointers, read only for migration
+    private static final int legacyDirectSize = 11;
+    private static final int legacyIndexSize = Disk.blockSize / 2;
+    private static final int legacySingleIndirectLimit = (legacyDirectSize + legacyIndexSize) * Disk.blockSize;
 
 
     public int length;                              //# bytes in file (file size)
-    public short count;                             //# file-table entries pointing to this
+    public short count;                             //# file-table entries pointing to this; in memory only
     public short flag;                              //0 = unused, 1 = used, ...
-    public short[] direct = new short[directSize];  //direct pointers
-    public short indirect;                          //an indirect pointer; 12th total data block,
+    public int[] direct = new int[directSize];      //direct pointers
+    public int indirect;                            //an indirect pointer; 4th total data block,
                                                     //data referencing block locations on disk
-    
+    public int doubleIndirect;                      //points to an index block of index blocks
+    public int tripleIndirect;                      //points to an index block of double indirect blocks
+    public boolean dirty;                           //in memory only; changed since last toDisk
+    public int journalSequence;                     //in memory only; the journal commit holding the last toDisk
+
+    //the index cache is guarded by the inode's monitor; readers sharing the
+    //inode load index blocks into it at the same time
+    private Map<Integer, int[]> indexBlocks = new HashMap<Integer, int[]>();   //decoded index blocks, loaded on demand
+    private Set<Integer> dirtyIndexBlocks = new HashSet<Integer>();           //index blocks changed since they were written
+
+    //16 inodes share a block, and writing one out reads and rewrites the whole
+    //block; without this lock two inodes written at once would lose one change
+    private static final ReentrantLock blockLock = new ReentrantLock();
+
     public Inode() {                                       //a default constructor
         this.length = 0;
         this.count = 0;
         this.flag = 1;
         for(int i = 0; i < directSize; i++)
             direct[i] = NOT_FOUND;                  //init to -1 by default, to flag as invalid ref
-                                     
+
         this.indirect = NOT_FOUND;
+        this.doubleIndirect = NOT_FOUND;
+        this.tripleIndirect = NOT_FOUND;
     }
-    
-    
+
+
 
     public Inode(short iNumber) {                          //retrieving inode from disk
-       
+
         if (iNumber < 0)
             return;
 
         int blkNumber = 1 + (iNumber / 16);
         int offset = (iNumber % 16) * iNodeSize;
-        
+
         //create an empty block to popuplate
         byte[] b = new byte[Disk.blockSize];
-        
-        //read the block data from file
-        SysLib.rawread(blkNumber, b);
-        
+
+        //read the block data from file, including changes not yet committed
+        Journal.read(blkNumber, b);
+
         //deserialize the block length data
         this.length = SysLib.bytes2int(b, offset);
         offset += 4;
 
-        //deserialize the count data
-        this.count = SysLib.bytes2short(b, offset);
+        //skip the unused half word; the count is kept in memory only
         offset += 2;
 
         //deserialize the flag data
         this.flag = SysLib.bytes2short(b, offset);
         offset += 2;
-        
+
         //iterate over the direct links
         for(int i = 0; i < directSize; i++)
         {
             //deserialize the block pointer data
-            direct[i] = SysLib.bytes2short(b, offset);
-            offset += 2;
+            direct[i] = SysLib.bytes2int(b, offset);
+            offset += 4;
         }
-        
-        //deserialize the last, indirect pointer
-        indirect = SysLib.bytes2short(b, offset);
+
+        //deserialize the indirect pointers
+        indirect = SysLib.bytes2int(b, offset);
+        offset += 4;
+        doubleIndirect = SysLib.bytes2int(b, offset);
+        offset += 4;
+        tripleIndirect = SysLib.bytes2int(b, offset);
     }
-    
-    
 
-    public void toDisk(short iNumber) {                     //save to disk as the i-th inode
+
+
+    public synchronized void toDisk(short iNumber) {        //save to disk as the i-th inode
         //utility function that moves all current
-        //data from memory to file 
-        
+        //data from memory to file
+
         //input sanitation
         if(iNumber < 0)
             return;
 
         int blkNumber = 1 + (iNumber / 16);
-        int offset = (iNumber % 16) * iNodeSize; //0;   
+        int offset = (iNumber % 16) * iNodeSize; //0;
+
+
+        //write back the changed index blocks once instead of on every registration;
+        //they go before the inode so it never points at an index that isn't written
+        byte[] ib = new byte[Disk.blockSize];
+        for(int block : this.dirtyIndexBlocks)
+        {
+            int[] index = this.indexBlocks.get(block);
+            for(int i = 0; i < indexSize; i++)
+                SysLib.int2bytes(index[i], ib, i * 4);
+            Journal.write(block, ib);
+        }
+        this.dirtyIndexBlocks.clear();
 
 
         //create an empty block to popuplate
         byte[] b = new byte[Disk.blockSize];
 
-        //read the block from cache/memory to buffer
-        SysLib.rawread(blkNumber, b);
+        //read the block from the journal/cache to buffer
+        lockBlock();
+        try
+        {
+            Journal.read(blkNumber, b);
+            toBytes(b, offset);
 
 
+            //write the byte data to file through the journal
+            Journal.write(blkNumber, b);
+        }
+        finally
+        {
+            blockLock.unlock();
+        }
+        this.journalSequence = Journal.getOpenSequence();
+        this.dirty = false;
+    }
+
+
+
+    private static void lockBlock()
+    {
+        //takes blockLock; a thread that has to wait lets others run meanwhile
+        if(!blockLock.tryLock())
+        {
+            Kernel.block();
+            try
+            {
+                blockLock.lock();
+            }
+            finally
+            {
+                Kernel.unblock();
+            }
+        }
+    }
+
+
+
+    public void toBytes(byte[] b, int offset)
+    {
+        //serializes the inode into b at offset; used to build whole inode blocks
+
         //serialize the length data
         SysLib.int2bytes(this.length, b, offset);
         offset += 4;
-        
-        //serialize the block count data
-        SysLib.short2bytes(this.count, b, offset);
+
+        //the unused half word
+        SysLib.short2bytes((short) 0, b, offset);
         offset += 2;
 
         //serialize the flag data
         SysLib.short2bytes(this.flag, b, offset);
-        offset += 2; 
+        offset += 2;
 
 
         //iterate over the linked list
         for(int i = 0; i < directSize; i++)
         {
             //serialize the block pointer data
-            SysLib.short2bytes(this.direct[i], b,  offset);
+            SysLib.int2bytes(this.direct[i], b,  offset);
+            offset += 4;
+        }
+
+
+        //serialize the indirect pointers
+        SysLib.int2bytes(this.indirect, b,  offset);
+        offset += 4;
+        SysLib.int2bytes(this.doubleIndirect, b,  offset);
+        offset += 4;
+        SysLib.int2bytes(this.tripleIndirect, b,  offset);
+    }
+
+
+
+    public static Inode fromLegacy(short iNumber, List<Integer> dataBlocks, List<Integer> indexBlocks)
+    {
+        //reads an inode written with 16 bit block pointers; the data blocks
+        //are added to dataBlocks in file order and the old index blocks to
+        //indexBlocks; the returned inode has no blocks registered
+        int blkNumber = 1 + (iNumber / 16);
+        int offset = (iNumber % 16) * iNodeSize;
+
+        byte[] b = new byte[Disk.blockSize];
+        SysLib.cread(blkNumber, b);
+
+        Inode inode = new Inode();
+        inode.length = SysLib.bytes2int(b, offset);
+        short doubleBlock = SysLib.bytes2short(b, offset + 4);
+        inode.flag = SysLib.bytes2short(b, offset + 6);
+        offset += 8;
+
+        for(int i = 0; i < legacyDirectSize; i++)
+        {
+            short block = SysLib.bytes2short(b, offset);
+            if(block > 0)
+                dataBlocks.add((int) block);
             offset += 2;
         }
 
+        //the single indirect, then the double indirect which shares its
+        //slot with the count older disks stored
+        readLegacyIndex(SysLib.bytes2short(b, offset), 1, dataBlocks, indexBlocks);
+        if(inode.length > legacySingleIndirectLimit)
+            readLegacyIndex(doubleBlock, 2, dataBlocks, indexBlocks);
+        return inode;
+    }
+
+
+
+    private static void readLegacyIndex(short block, int depth, List<Integer> dataBlocks, List<Integer> indexBlocks)
+    {
+        if(block <= 0)
+            return;
+        indexBlocks.add((int) block);
+
+        byte[] b = new byte[Disk.blockSize];
+        SysLib.cread(block, b);
+        for(int i = 0; i < legacyIndexSize; i++)
+        {
+            short entry = SysLib.bytes2short(b, i * 2);
+            if(entry <= 0)
+                continue;
+            if(depth == 1)
+                dataBlocks.add((int) entry);
+            else
+                readLegacyIndex(entry, depth - 1, dataBlocks, indexBlocks);
+        }
+    }
+
+
+
+    private int getRoot(int level)
+    {
+        //the pointer to the top index block of an indirect level
+        switch(level)
+        {
+            case 1: return this.indirect;
+            case 2: return this.doubleIndirect;
+            default: return this.tripleIndirect;
+        }
+    }
 
-        //serialize the last, indirect pointer
-        SysLib.short2bytes(this.indirect, b,  offset);
-        offset += 2;
 
 
-        //write the byte data to file
-        SysLib.rawwrite(blkNumber, b);
+    private void setRoot(int level, int block)
+    {
+        switch(level)
+        {
+            case 1: this.indirect = block; break;
+            case 2: this.doubleIndirect = block; break;
+            default: this.tripleIndirect = block; break;
+        }
+        this.dirty = true;
     }
-    
 
-    
-    public int findIndexBlock()
-    {     
-        return this.indirect; 
+
+
+    private static long span(int level)
+    {
+        //# of data blocks reachable through an index block of the level
+        long blocks = 1;
+        for(int i = 0; i < level; i++)
+            blocks *= indexSize;
+        return blocks;
     }
 
 
 
-    public int findTargetBlock(int offset)
+    private static int findLevel(long blkNumber)
     {
-        //sanitize input 
-        if(offset < 0) 
+        //the indirect level holding the block at blkNumber past the direct
+        //blocks, or 0 when the file can't be that large
+        for(int level = 1; level <= indirectLevels; level++)
+        {
+            if(blkNumber < span(level))
+                return level;
+            blkNumber -= span(level);
+        }
+        return 0;
+    }
+
+
+
+    private static long levelStart(int level)
+    {
+        //# of blocks before the first one of the level, not counting the direct blocks
+        long start = 0;
+        for(int i = 1; i < level; i++)
+            start += span(i);
+        return start;
+    }
+
+
+
+    public synchronized int findTargetBlock(int offset)
+    {
+        //sanitize input
+        if(offset < 0)
             return  NOT_FOUND;
 
         int blkNumber = offset/Disk.blockSize;
@@ -143,25 +338,73 @@ public class Inode
             return this.direct[blkNumber];
 
 
-        //test if indirect is used
-        if(this.indirect == NOT_FOUND)
+        //walk down one index block per level
+        long rel = blkNumber - directSize;
+        int level = findLevel(rel);
+        if(level == 0)
             return NOT_FOUND;
+        rel -= levelStart(level);
 
+        int block = getRoot(level);
+        for(int depth = level; depth > 0 && block != NOT_FOUND; depth--)
+            block = loadIndexBlock(block)[(int) (rel / span(depth - 1) % indexSize)];
+        return block;
+    }
 
-        //block is in indirect; deserialize to find 
-        byte[] b = new byte[Disk.blockSize];
-        SysLib.rawread(this.indirect, b);
-        return SysLib.bytes2short(b, (blkNumber - directSize) * 2) ;
+
+
+    private int[] loadIndexBlock(int block)
+    {
+        //only read and decode an index block the first time it is used
+        int[] index = this.indexBlocks.get(block);
+        if(index == null)
+        {
+            byte[] b = new byte[Disk.blockSize];
+            Journal.read(block, b);
+
+            index = new int[indexSize];
+            for(int i = 0; i < indexSize; i++)
+                index[i] = SysLib.bytes2int(b, i * 4);
+            this.indexBlocks.put(block, index);
+        }
+        return index;
     }
 
 
 
-    public boolean registerIndexBlock(short iNumber)
+    private void createIndexBlock(int block)
     {
+        //create an empty index; it is written to disk with the inode
+        int[] index = new int[indexSize];
+        Arrays.fill(index, NOT_FOUND);
+        this.indexBlocks.put(block, index);
+        this.dirtyIndexBlocks.add(block);
+        this.dirty = true;
+    }
+
+
+
+    private void dropIndexBlock(int block)
+    {
+        this.indexBlocks.remove(block);
+        this.dirtyIndexBlocks.remove(block);
+    }
+
+
+
+    public synchronized boolean registerIndexBlock(int offset, int iNumber)
+    {
+        //registers the first missing index block on the path to offset
         //sanitize input
-        if(iNumber < 0)
+        if(iNumber < 0 || offset < 0)
+            return false;
+
+        long rel = offset/Disk.blockSize - directSize;
+
+        //the direct blocks don't need an index
+        if(rel < 0)
             return false;
-        
+
         //test if the direct list is already used
         for(int i = 0; i < directSize; i++)
         {
@@ -169,46 +412,59 @@ public class Inode
                 return false;
         }
 
-        //test if indirect is in use
-        if(this.indirect > NOT_FOUND)
+        int level = findLevel(rel);
+        if(level == 0)
             return false;
-        
-        //register the indirect to the block number
-        this.indirect = iNumber;
-
-        //create an empty block 
-        byte[] b = new byte[Disk.blockSize];
+        rel -= levelStart(level);
 
-        //populate the indirect array
-        for(int i = 0; i < (Disk.blockSize / 2); i++)
+        //the top index block of the level comes first
+        if(getRoot(level) == NOT_FOUND)
         {
-            SysLib.short2bytes((short)NOT_FOUND, b, i * 2);
+            setRoot(level, iNumber);
+            createIndexBlock(iNumber);
+            return true;
         }
 
-        SysLib.rawwrite(iNumber, b);
-        //return success
-        return true;
+        //then the index blocks below it on the path to the offset
+        int block = getRoot(level);
+        for(int depth = level; depth > 1; depth--)
+        {
+            int[] index = loadIndexBlock(block);
+            int slot = (int) (rel / span(depth - 1) % indexSize);
+            if(index[slot] == NOT_FOUND)
+            {
+                index[slot] = iNumber;
+                this.dirtyIndexBlocks.add(block);
+                createIndexBlock(iNumber);
+
+                //return success
+                return true;
+            }
+            block = index[slot];
+        }
 
+        //every index block on the path already exists
+        return false;
     }
 
 
-    
-    public int registerTargetBlock(int offset, short iNumber)
+
+    public synchronized int registerTargetBlock(int offset, int iNumber)
     {
         //sanitize input
         if(iNumber < 0)
             return NOT_FOUND;
-        
+
         //check if space is available
         int blkNumber = offset/Disk.blockSize;
 
-        //test if block is in direct list 
+        //test if block is in direct list
         if(blkNumber < directSize)
         {
             //test if already in use
             if(direct[blkNumber] != NOT_FOUND)
                 return ErrorBlockRegistered;
-            
+
             //test if previous block is unused
             if(blkNumber > 0 && direct[blkNumber - 1] == NOT_FOUND)
                 return ErrorPrecBlockUnused;
@@ -221,50 +477,232 @@ public class Inode
         }
 
 
-        //block is in indirect space
-        //test if indirect is unused
-        if(indirect == NOT_FOUND)
-            return ErrorIndirectNull;
-    
-        //move to the indirect space
-        int blockOffset =  blkNumber - directSize;
+        //find the index block holding the pointer
+        long rel = blkNumber - directSize;
+        int level = findLevel(rel);
+        if(level == 0)
+            return ErrorOutOfRange;
+        rel -= levelStart(level);
 
-        byte[] b = new byte[Disk.blockSize];
-        SysLib.rawread(this.indirect, b);
+        int block = getRoot(level);
+        for(int depth = level; depth > 1 && block != NOT_FOUND; depth--)
+            block = loadIndexBlock(block)[(int) (rel / span(depth - 1) % indexSize)];
 
+        //test if an index block on the path is unused
+        if(block == NOT_FOUND)
+            return ErrorIndirectNull;
 
-        int blkOffset = blkNumber - directSize;
+        //move to the index block
+        int[] index = loadIndexBlock(block);
+        int slot = (int) (rel % indexSize);
 
-        if(SysLib.bytes2short(b, blkOffset * 2) > 0) //NOT_FOUND)
+        if(index[slot] > 0) //NOT_FOUND)
         {
             return ErrorPrecBlockUnused;
         }
 
 
-        SysLib.short2bytes(iNumber, b, blkOffset * 2);
-        SysLib.rawwrite(indirect, b);
+        //update the in-memory index; written back by toDisk
+        index[slot] = iNumber;
+        this.dirtyIndexBlocks.add(block);
+        this.dirty = true;
         return NoError;
     }
 
-    
 
-    public byte[] unregisterIndexBlock()
+
+    public synchronized int[] unregisterTargetBlocks(int offset)
     {
-        //test if indirect is populated
-        if(this.indirect < 0)
-            return null;
+        //releases every data block at or after offset; returns the released blocks
+        if(offset < 0)
+            offset = 0;
 
+        long first = offset / Disk.blockSize;
+        List<Integer> released = new ArrayList<Integer>();
 
-        //create a temp block
-        byte[] b  = new byte[Disk.blockSize];
+        for(int i = (int) Math.min(first, directSize); i < directSize; i++)
+        {
+            if(direct[i] != NOT_FOUND)
+            {
+                released.add(direct[i]);
+                direct[i] = NOT_FOUND;
+            }
+        }
 
-        //read the indirect block
-        SysLib.rawread(this.indirect, b);
+        for(int level = 1; level <= indirectLevels; level++)
+        {
+            long from = first - directSize - levelStart(level);
+            if(getRoot(level) != NOT_FOUND && from < span(level))
+                clearIndex(getRoot(level), level, from, released);
+        }
 
-        //clear the localk indirect block
-        this.indirect = NOT_FOUND;
+        if(!released.isEmpty())
+            this.dirty = true;
+        return toArray(released);
+    }
+
+
+
+    private void clearIndex(int block, int depth, long from, List<Integer> released)
+    {
+        //clears the data pointers under an index block that are at or after from
+        int[] index = loadIndexBlock(block);
+        long span = span(depth - 1);
+        for(int i = (int) Math.max(0, from / span); i < indexSize; i++)
+        {
+            if(index[i] == NOT_FOUND)
+                continue;
+            if(depth > 1)
+            {
+                clearIndex(index[i], depth - 1, from - i * span, released);
+            }
+            else
+            {
+                released.add(index[i]);
+                index[i] = NOT_FOUND;
+                this.dirtyIndexBlocks.add(block);
+            }
+        }
+    }
+
+
+
+    public synchronized int[] unregisterIndexBlocks(int offset)
+    {
+        //releases the index blocks that only cover data at or after offset;
+        //call after unregisterTargetBlocks so the data blocks aren't lost
+        if(offset < 0)
+            offset = 0;
+
+        long kept = (offset + (long) Disk.blockSize - 1) / Disk.blockSize;
+        List<Integer> released = new ArrayList<Integer>();
 
-        //return the temp block
-        return b;
+        for(int level = 1; level <= indirectLevels; level++)
+        {
+            //# of blocks of this level that are still part of the file
+            long used = kept - directSize - levelStart(level);
+            if(getRoot(level) == NOT_FOUND)
+                continue;
+            if(used <= 0)
+            {
+                releaseIndex(getRoot(level), level, released);
+                setRoot(level, NOT_FOUND);
+            }
+            else if(used < span(level))
+            {
+                pruneIndex(getRoot(level), level, used, released);
+            }
+        }
+
+        if(!released.isEmpty())
+            this.dirty = true;
+        return toArray(released);
+    }
+
+
+
+    private void pruneIndex(int block, int depth, long used, List<Integer> released)
+    {
+        //releases the index blocks below block that cover no used data
+        if(depth == 1)
+            return;
+        int[] index = loadIndexBlock(block);
+        long span = span(depth - 1);
+        for(int i = 0; i < indexSize; i++)
+        {
+            if(index[i] == NOT_FOUND || (i + 1) * span <= used)
+                continue;
+            if(i * span >= used)
+            {
+                releaseIndex(index[i], depth - 1, released);
+                index[i] = NOT_FOUND;
+                this.dirtyIndexBlocks.add(block);
+            }
+            else
+            {
+                pruneIndex(index[i], depth - 1, used - i * span, released);
+            }
+        }
+    }
+
+
+
+    private void releaseIndex(int block, int depth, List<Integer> released)
+    {
+        //releases an index block and the index blocks below it
+        if(depth > 1)
+        {
+            int[] index = loadIndexBlock(block);
+            for(int i = 0; i < indexSize; i++)
+            {
+                if(index[i] != NOT_FOUND)
+                    releaseIndex(index[i], depth - 1, released);
+            }
+        }
+        released.add(block);
+        dropIndexBlock(block);
+    }
+
+
+
+    public synchronized int[] getBlocks()
+    {
+        //every data and index block the inode points to; used by the file system check
+        return getBlocks(true);
+    }
+
+
+
+    public synchronized int[] getDataBlocks()
+    {
+        //the data blocks without the index blocks; used by fsync
+        return getBlocks(false);
+    }
+
+
+
+    private int[] getBlocks(boolean withIndex)
+    {
+        List<Integer> blocks = new ArrayList<Integer>();
+        for(int i = 0; i < directSize; i++)
+        {
+            if(direct[i] != NOT_FOUND)
+                blocks.add(direct[i]);
+        }
+        for(int level = 1; level <= indirectLevels; level++)
+        {
+            if(getRoot(level) != NOT_FOUND)
+                collectIndex(getRoot(level), level, blocks, withIndex);
+        }
+        return toArray(blocks);
+    }
+
+
+
+    private void collectIndex(int block, int depth, List<Integer> blocks, boolean withIndex)
+    {
+        //adds an index block and everything below it
+        if(withIndex)
+            blocks.add(block);
+        int[] index = loadIndexBlock(block);
+        for(int i = 0; i < indexSize; i++)
+        {
+            if(index[i] == NOT_FOUND)
+                continue;
+            if(depth > 1)
+                collectIndex(index[i], depth - 1, blocks, withIndex);
+            else
+                blocks.add(index[i]);
+        }
+    }
+
+
+
+    private static int[] toArray(List<Integer> blocks)
+    {
+        int[] result = new int[blocks.size()];
+        for(int i = 0; i < result.length; i++)
+            result[i] = blocks.get(i);
+        return result;
     }
 }
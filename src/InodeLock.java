@@ -0,0 +1,119 @@
+import java.util.concurrent.locks.*;
+
+/**
+ * The readers-writer lock of an open inode.
+ *
+ * Files opened for reading share the inode, a file opened for writing has
+ * it to itself.  Waiters are let in by turns: once a writer is waiting new
+ * readers queue behind it, and a writer that finishes lets in every reader
+ * that was waiting before the next writer.  Neither side can starve.
+ *
+ * A file is often closed by another thread than the one that opened it, so
+ * the lock doesn't belong to a thread the way a ReentrantReadWriteLock does.
+ */
+public class InodeLock {
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+
+    private final Condition readable = lock.newCondition();
+
+    private final Condition writable = lock.newCondition();
+
+    /** The readers holding the lock. */
+    private int readers;
+
+    /** Whether a writer holds the lock. */
+    private boolean writing;
+
+    private int waitingReaders;
+
+    private int waitingWriters;
+
+    /** The waiting readers a writer let in ahead of the writers. */
+    private int admitted;
+
+    /**
+     * Waits until the inode can be read, then shares it with other readers.
+     */
+    public void lockRead() {
+        lock.lock();
+        try {
+            waitingReaders++;
+            if (writing || (waitingWriters > 0 && admitted == 0)) {
+                // Let other threads run while this one waits.
+                Kernel.block();
+                try {
+                    while (writing || (waitingWriters > 0 && admitted == 0)) {
+                        readable.awaitUninterruptibly();
+                    }
+                }
+                finally {
+                    Kernel.unblock();
+                }
+            }
+            waitingReaders--;
+            if (admitted > 0) {
+                admitted--;
+            }
+            readers++;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until no one else uses the inode, then takes it.
+     */
+    public void lockWrite() {
+        lock.lock();
+        try {
+            waitingWriters++;
+            if (writing || readers > 0 || admitted > 0) {
+                Kernel.block();
+                try {
+                    while (writing || readers > 0 || admitted > 0) {
+                        writable.awaitUninterruptibly();
+                    }
+                }
+                finally {
+                    Kernel.unblock();
+                }
+            }
+            waitingWriters--;
+            writing = true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives the inode up.  The last reader lets in the next writer; a writer
+     * lets in the readers that are waiting or else the next writer.
+     */
+    public void unlock(boolean write) {
+        lock.lock();
+        try {
+            if (write) {
+                writing = false;
+                if (waitingReaders > 0) {
+                    admitted = waitingReaders;
+                    readable.signalAll();
+                }
+                else {
+                    writable.signal();
+                }
+            }
+            else {
+                readers--;
+                if (readers == 0) {
+                    writable.signal();
+                }
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,474 @@
+import java.util.*;
+
+/**
+ * A write-ahead journal for the file system's metadata.
+ *
+ * The superblock, bitmap, inode, index and directory blocks are written
+ * through the journal instead of straight into the cache.  Their new
+ * contents are held in memory until the journal commits.  A commit
+ *
+ *   1. writes back the blocks allocated since the last commit, so that new
+ *      pointers never lead to stale data, and the blocks of the previous
+ *      commit, so that its log can be overwritten,
+ *   2. clears the header, writes the new block contents and a descriptor
+ *      listing their blocks to the journal region, then the header that
+ *      makes them valid,
+ *   3. writes the new contents to their own blocks through the cache.
+ *
+ * If the system stops after step 2 the next mount replays the journal, so
+ * the changes in a commit reach the disk together or not at all.
+ *
+ * Operations mark their start and end with begin and end.  Changes made by
+ * many threads are committed together once enough blocks have changed and
+ * no operation is half done, when the file system is synced, or when the
+ * journal has no room for another operation.  A commit waits for the
+ * running operations to end and holds back new ones meanwhile, so an
+ * operation is never committed in part.
+ *
+ * The journal region starts with the header block, followed by the
+ * descriptor block and the logged blocks.  The header holds a magic number
+ * (offset 0), the sequence number of the commit (offset 4) and the number
+ * of logged blocks (offset 8), which is 0 once they have been replayed.
+ */
+public class Journal {
+
+    private static final int MAGIC = 0x4a524e4c;
+
+    /**
+     * Set by JournalTest to stop the system in the middle of a commit, once
+     * the log is written and before the header makes it valid.
+     */
+    private static final String CRASH_PROPERTY = "threados.journal.crash";
+
+    /** The changed blocks that start a commit once no operation is running. */
+    private static final int GROUP_COMMIT_BLOCKS = 16;
+
+    /**
+     * The most blocks one operation may change.  An operation only begins
+     * once the journal has room for it and for every running operation.
+     */
+    public static final int OPERATION_BLOCKS = 8;
+
+    /** The first block of the journal region. */
+    private static int start;
+
+    /** The blocks in the journal region or 0 if there is no journal. */
+    private static int blocks;
+
+    /** The changed blocks that haven't been committed, in the order they changed. */
+    private static final Map<Integer, byte[]> pending = new LinkedHashMap<Integer, byte[]>();
+
+    /** The blocks allocated since the last commit. */
+    private static final Set<Integer> allocated = new HashSet<Integer>();
+
+    /** The blocks of the last commit, which must be home before the log is reused. */
+    private static final Set<Integer> checkpoint = new HashSet<Integer>();
+
+    /**
+     * The blocks of the commit being written, or null.  The commit is
+     * written without holding the monitor, so reads find them here until
+     * they are in the cache.
+     */
+    private static Map<Integer, byte[]> flushing;
+
+    /** The number of operations that have begun but not ended. */
+    private static int active;
+
+    /**
+     * Whether a commit is waiting for the running operations to end or is
+     * being written.  No operation begins meanwhile.
+     */
+    private static boolean committing;
+
+    /** How deeply the current thread has nested operations. */
+    private static final ThreadLocal<int[]> depth = new ThreadLocal<int[]>() {
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    /** The sequence number of the last commit. */
+    private static int sequence;
+
+    private static long commits;
+
+    /**
+     * Starts journaling into a region of the disk.  replay must have been
+     * called for the region first.  Whatever an older commit left in the
+     * region is marked as replayed, so it can't overwrite later changes.
+     *
+     * @param start The first block of the region.
+     * @param blocks The size of the region or 0 to write blocks directly.
+     */
+    public static synchronized void open(int start, int blocks) {
+        Journal.start = start;
+        Journal.blocks = blocks > 2 ? blocks : 0;
+        if (Journal.blocks == 0) {
+            // Without a journal, changes go straight into the cache.
+            for (Map.Entry<Integer, byte[]> entry : pending.entrySet()) {
+                SysLib.cwrite(entry.getKey(), entry.getValue());
+            }
+            pending.clear();
+        }
+        else {
+            writeHeader(start, sequence, 0);
+        }
+    }
+
+    /**
+     * Writes the blocks of the last commit to their own blocks again.  The
+     * commit is then marked as replayed so that blocks written directly
+     * while mounting aren't overwritten by the next replay.
+     *
+     * @param start The first block of the region.
+     * @param blocks The size of the region.
+     * @return The number of blocks replayed.
+     */
+    public static synchronized int replay(int start, int blocks) {
+        byte[] header = new byte[Disk.blockSize];
+        if (blocks <= 2 || SysLib.rawread(start, header) == Kernel.ERROR ||
+                SysLib.bytes2int(header, 0) != MAGIC) {
+            return 0;
+        }
+        sequence = SysLib.bytes2int(header, 4);
+        int count = SysLib.bytes2int(header, 8);
+        if (count <= 0 || count > capacity(blocks)) {
+            return 0;
+        }
+
+        byte[] descriptor = new byte[Disk.blockSize];
+        byte[] buffer = new byte[Disk.blockSize];
+        SysLib.rawread(start + 1, descriptor);
+        for (int i = 0; i < count; i++) {
+            SysLib.rawread(start + 2 + i, buffer);
+            SysLib.cwrite(SysLib.bytes2int(descriptor, i * 4), buffer);
+        }
+        SysLib.csync();
+
+        SysLib.int2bytes(0, header, 8);
+        SysLib.rawwrite(start, header);
+        return count;
+    }
+
+    /**
+     * Marks the start of an operation that changes metadata.  Waits while a
+     * commit is running, and commits the changes so far first if the
+     * journal has no room for one more operation.  An operation begun
+     * inside another one is part of it.
+     */
+    public static void begin() {
+        int[] nesting = depth.get();
+        if (nesting[0] > 0) {
+            nesting[0]++;
+            return;
+        }
+        while (true) {
+            synchronized (Journal.class) {
+                awaitCommit();
+                if (hasRoom()) {
+                    active++;
+                    nesting[0] = 1;
+                    return;
+                }
+            }
+            commit();
+        }
+    }
+
+    /**
+     * Marks the end of an operation.  The last operation to end commits the
+     * journal once enough blocks have changed.
+     */
+    public static void end() {
+        int[] nesting = depth.get();
+        if (--nesting[0] > 0) {
+            return;
+        }
+        boolean full;
+        synchronized (Journal.class) {
+            active--;
+            Journal.class.notifyAll();
+            full = active == 0 && !committing && blocks > 0 &&
+                pending.size() >= Math.min(GROUP_COMMIT_BLOCKS, capacity(blocks));
+        }
+        if (full) {
+            commit();
+        }
+    }
+
+    /**
+     * Reads a metadata block, including changes that haven't been committed.
+     */
+    public static int read(int blockId, byte[] buffer) {
+        synchronized (Journal.class) {
+            byte[] image = pending.get(blockId);
+            if (image == null && flushing != null) {
+                image = flushing.get(blockId);
+            }
+            if (image != null) {
+                System.arraycopy(image, 0, buffer, 0, Disk.blockSize);
+                return Kernel.OK;
+            }
+        }
+        return SysLib.cread(blockId, buffer);
+    }
+
+    /**
+     * Writes a metadata block.  Without a journal the block goes straight
+     * into the cache.
+     */
+    public static int write(int blockId, byte[] buffer) {
+        synchronized (Journal.class) {
+            if (blocks > 0) {
+                byte[] image = pending.get(blockId);
+                if (image == null) {
+                    if (pending.size() >= capacity(blocks)) {
+                        // begin left room for every running operation, so one of them
+                        // changed more than OPERATION_BLOCKS.
+                        throw new FileSystemException("An operation changed more blocks than the journal holds.");
+                    }
+                    image = new byte[Disk.blockSize];
+                    pending.put(blockId, image);
+                }
+                System.arraycopy(buffer, 0, image, 0, Disk.blockSize);
+                return Kernel.OK;
+            }
+        }
+        return SysLib.cwrite(blockId, buffer);
+    }
+
+    /**
+     * Drops the uncommitted change to a block that has been freed, so that
+     * it can't overwrite the block once it holds file data.
+     */
+    public static synchronized void revoke(int blockId) {
+        pending.remove(blockId);
+        allocated.remove(blockId);
+    }
+
+    /**
+     * Records a newly allocated block.  The next commit writes it back
+     * before the metadata that points to it.
+     */
+    public static synchronized void allocate(int blockId) {
+        if (blocks > 0) {
+            allocated.add(blockId);
+        }
+    }
+
+    /**
+     * Whether metadata changes go through the journal.
+     */
+    public static synchronized boolean isEnabled() {
+        return blocks > 0;
+    }
+
+    /**
+     * The sequence number the next commit will have.  A block written now
+     * is committed once isCommitted returns true for this number.
+     */
+    public static synchronized int getOpenSequence() {
+        if (blocks == 0) {
+            return 0;
+        }
+        // A block written while a commit is being written goes in the next one.
+        return flushing != null ? sequence + 2 : sequence + 1;
+    }
+
+    /**
+     * Whether the commit with the given sequence number has been written.
+     */
+    public static synchronized boolean isCommitted(int commitSequence) {
+        return commitSequence <= sequence;
+    }
+
+    /**
+     * Drops every uncommitted change and writes blocks straight into the
+     * cache until open is called again.  Used by format, which rewrites all
+     * of the metadata and may change more blocks than the journal holds.
+     */
+    public static synchronized void discard() {
+        pending.clear();
+        allocated.clear();
+        checkpoint.clear();
+        blocks = 0;
+    }
+
+    /**
+     * Commits the changed blocks.  New operations wait while the running
+     * ones end, so that none of them is committed half done, and until the
+     * commit has been written.  The disk is written without holding the
+     * monitor, so reads of metadata go on meanwhile.  Must not be called
+     * inside an operation or while holding a lock that operations need.
+     */
+    public static void commit() {
+        if (depth.get()[0] > 0) {
+            throw new FileSystemException("Cannot commit inside an operation.");
+        }
+        int region;
+        int commitSequence;
+        int[] written;
+        Map<Integer, byte[]> image;
+        synchronized (Journal.class) {
+            // A commit that is already running goes first.
+            awaitCommit();
+            if (blocks == 0 || pending.isEmpty()) {
+                return;
+            }
+            committing = true;
+            boolean interrupted = false;
+            while (active > 0) {
+                interrupted |= await();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            // The new data and the blocks of the last commit go first, then the
+            // log can be overwritten.
+            checkpoint.addAll(allocated);
+            written = new int[checkpoint.size()];
+            int n = 0;
+            for (int block : checkpoint) {
+                written[n++] = block;
+            }
+            checkpoint.clear();
+            allocated.clear();
+
+            image = new LinkedHashMap<Integer, byte[]>(pending);
+            flushing = image;
+            pending.clear();
+            region = start;
+            commitSequence = sequence + 1;
+        }
+
+        try {
+            writeCommit(region, commitSequence, image, written);
+        }
+        finally {
+            synchronized (Journal.class) {
+                checkpoint.addAll(image.keySet());
+                sequence = commitSequence;
+                commits++;
+                flushing = null;
+                committing = false;
+                Journal.class.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * The number of changed blocks waiting for the next commit.
+     */
+    public static synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    public static synchronized long getCommits() {
+        return commits;
+    }
+
+    /**
+     * The most blocks one commit can hold in a region of the given size.
+     */
+    private static int capacity(int blocks) {
+        return Math.min(blocks - 2, Disk.blockSize / 4);
+    }
+
+    /**
+     * Whether an operation can begin without the journal overflowing.  The
+     * caller holds the monitor.
+     */
+    private static boolean hasRoom() {
+        if (blocks == 0 || (active == 0 && pending.isEmpty())) {
+            return true;
+        }
+        return pending.size() + (active + 1) * OPERATION_BLOCKS <= capacity(blocks);
+    }
+
+    /**
+     * Waits until no commit is running.  The caller holds the monitor.
+     */
+    private static void awaitCommit() {
+        boolean interrupted = false;
+        while (committing) {
+            interrupted |= await();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits once for the journal to change, letting the scheduler run other
+     * threads meanwhile.  The caller holds the monitor.
+     *
+     * @return true if the thread was interrupted, which the caller passes on
+     *         once it is done waiting.
+     */
+    private static boolean await() {
+        Kernel.block();
+        try {
+            Journal.class.wait();
+            return false;
+        }
+        catch (InterruptedException e) {
+            return true;
+        }
+        finally {
+            Kernel.unblock();
+        }
+    }
+
+    /**
+     * Writes the header of a journal region.
+     *
+     * @param region The first block of the region.
+     * @param commitSequence The sequence number of the last commit.
+     * @param count The number of logged blocks or 0 if there are none to replay.
+     */
+    private static void writeHeader(int region, int commitSequence, int count) {
+        byte[] header = new byte[Disk.blockSize];
+        SysLib.int2bytes(MAGIC, header, 0);
+        SysLib.int2bytes(commitSequence, header, 4);
+        SysLib.int2bytes(count, header, 8);
+        SysLib.rawwrite(region, header);
+    }
+
+    /**
+     * Writes a commit to the log and then the blocks to their own blocks in
+     * the cache.  Runs without the monitor, commit keeps everyone else from
+     * changing the journal meanwhile.
+     *
+     * @param written The blocks to write back before the log is overwritten.
+     */
+    private static void writeCommit(int region, int commitSequence, Map<Integer, byte[]> image, int[] written) {
+        SysLib.csync(written);
+
+        // The header of the last commit still counts its blocks.  Clear it
+        // before the log is overwritten, or a crash meanwhile would replay
+        // new log blocks onto the blocks of the old descriptor.  rawwrite
+        // returns once the disk has the block, so no later block reaches the
+        // disk first.
+        writeHeader(region, commitSequence - 1, 0);
+
+        byte[] descriptor = new byte[Disk.blockSize];
+        int i = 0;
+        for (Map.Entry<Integer, byte[]> entry : image.entrySet()) {
+            SysLib.int2bytes(entry.getKey(), descriptor, i * 4);
+            SysLib.rawwrite(region + 2 + i, entry.getValue());
+            i++;
+        }
+        if (Boolean.getBoolean(CRASH_PROPERTY)) {
+            Kernel.crash();
+        }
+        SysLib.rawwrite(region + 1, descriptor);
+
+        // The header is written last, it makes the commit valid.
+        writeHeader(region, commitSequence, image.size());
+
+        for (Map.Entry<Integer, byte[]> entry : image.entrySet()) {
+            SysLib.cwrite(entry.getKey(), entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * Checks that the journal brings the disk back after a crash.
+ *
+ * Run "l JournalTest crash", which formats the disk, writes a file synced
+ * with fsync and one synced with fdatasync and stops ThreadOS without a
+ * sync.  Then boot again, so that the journal is replayed and the disk
+ * checked, and run "l JournalTest check".
+ *
+ * "l JournalTest torn" writes the same two files and then stops ThreadOS
+ * in the middle of the commit of a third one, after its log blocks are on
+ * the disk and before the header that makes them valid.  "l JournalTest
+ * check" must then find the first two files as they were.
+ */
+class JournalTest extends Thread {
+  final static int FILES = 48;
+  final static int BLOCKS = 8;
+  final String phase;
+
+  public JournalTest( String args[] ) {
+    phase = args.length > 0 ? args[0] : "";
+  }
+
+  public JournalTest( ) {
+    phase = "";
+  }
+
+  public void run( ) {
+    if ( phase.equals( "crash" ) )
+      crash( false );
+    else if ( phase.equals( "torn" ) )
+      crash( true );
+    else if ( phase.equals( "check" ) )
+      check( );
+    else
+      SysLib.cout( "usage: l JournalTest crash|torn, boot again, l JournalTest check\n" );
+    SysLib.exit( );
+  }
+
+  private void crash( boolean torn ) {
+    SysLib.cout( "1: format( " + FILES + " )..................." );
+    SysLib.format( FILES );
+    SysLib.cout( "successfully completed\n" );
+
+    // afile is written in two buffers and synced, it must survive the crash
+    SysLib.cout( "2: writev afile and fsync........" );
+    int fd = SysLib.open( "afile", "w" );
+    byte[][] buffers = { fill( BLOCKS / 2, 'A' ), fill( BLOCKS / 2, 'A' ) };
+    if ( SysLib.writev( fd, buffers ) != BLOCKS * 512 ) {
+      SysLib.cout( "writev failed\n" );
+      return;
+    }
+    if ( SysLib.fsync( fd ) == -1 ) {
+      SysLib.cout( "fsync failed\n" );
+      return;
+    }
+    SysLib.close( fd );
+    SysLib.cout( "successfully completed\n" );
+
+    // dfile only has its data synced, which commits its new blocks too
+    SysLib.cout( "3: write dfile and fdatasync....." );
+    fd = SysLib.open( "dfile", "w" );
+    if ( SysLib.write( fd, fill( BLOCKS, 'D' ) ) != BLOCKS * 512 ) {
+      SysLib.cout( "write failed\n" );
+      return;
+    }
+    if ( SysLib.fdatasync( fd ) == -1 ) {
+      SysLib.cout( "fdatasync failed\n" );
+      return;
+    }
+    SysLib.close( fd );
+    SysLib.cout( "successfully completed\n" );
+
+    if ( torn ) {
+      // the commit of efile stops before its header is written, so none
+      // of it may be replayed over afile and dfile
+      SysLib.cout( "4: write efile, crash in fsync..." );
+      fd = SysLib.open( "efile", "w" );
+      SysLib.write( fd, fill( BLOCKS * 2, 'E' ) );
+      System.setProperty( "threados.journal.crash", "true" );
+      SysLib.fsync( fd );
+      SysLib.cout( "fsync returned without a commit (wrong)\n" );
+      return;
+    }
+
+    // cfile is never synced, it may or may not survive
+    SysLib.cout( "4: write cfile without a sync...." );
+    fd = SysLib.open( "cfile", "w" );
+    SysLib.write( fd, fill( BLOCKS * 3, 'C' ) );
+    SysLib.close( fd );
+    SysLib.cout( "successfully completed\n" );
+
+    SysLib.cout( "Crashing, boot again and run JournalTest check\n" );
+    Runtime.getRuntime( ).halt( 1 );
+  }
+
+  private void check( ) {
+    boolean ok = true;
+
+    // blocks that afile lost to a stale bitmap would be handed out here
+    SysLib.cout( "1: write bfile...................." );
+    int fd = SysLib.open( "bfile", "w" );
+    if ( SysLib.write( fd, fill( BLOCKS, 'B' ) ) != BLOCKS * 512 ) {
+      SysLib.cout( "write failed\n" );
+      ok = false;
+    }
+    else
+      SysLib.cout( "successfully completed\n" );
+    SysLib.close( fd );
+
+    SysLib.cout( "2: readv afile...................." );
+    fd = SysLib.open( "afile", "r" );
+    if ( fd == -1 ) {
+      SysLib.cout( "afile is missing (wrong)\n" );
+      ok = false;
+    }
+    else {
+      byte[][] buffers = { new byte[BLOCKS / 2 * 512], new byte[BLOCKS / 2 * 512] };
+      int size = SysLib.fsize( fd );
+      int read = SysLib.readv( fd, buffers );
+      SysLib.close( fd );
+      if ( size != BLOCKS * 512 || read != size ) {
+        SysLib.cout( "size = " + size + " read = " + read + " (wrong)\n" );
+        ok = false;
+      }
+      else if ( !holds( buffers[0], 'A' ) || !holds( buffers[1], 'A' ) ) {
+        SysLib.cout( "afile was overwritten (wrong)\n" );
+        ok = false;
+      }
+      else
+        SysLib.cout( "successfully completed\n" );
+    }
+
+    SysLib.cout( "3: read dfile....................." );
+    fd = SysLib.open( "dfile", "r" );
+    if ( fd == -1 ) {
+      SysLib.cout( "dfile is missing (wrong)\n" );
+      ok = false;
+    }
+    else {
+      byte[] buffer = new byte[BLOCKS * 512];
+      int size = SysLib.fsize( fd );
+      int read = SysLib.read( fd, buffer );
+      SysLib.close( fd );
+      if ( size != buffer.length || read != size || !holds( buffer, 'D' ) ) {
+        SysLib.cout( "dfile was lost or overwritten (wrong)\n" );
+        ok = false;
+      }
+      else
+        SysLib.cout( "successfully completed\n" );
+    }
+
+    // cfile either didn't make it to the disk or holds what was written
+    SysLib.cout( "4: read cfile....................." );
+    fd = SysLib.open( "cfile", "r" );
+    if ( fd == -1 )
+      SysLib.cout( "not on disk, successfully completed\n" );
+    else {
+      byte[] buffer = new byte[SysLib.fsize( fd )];
+      SysLib.read( fd, buffer );
+      SysLib.close( fd );
+      if ( !holds( buffer, 'C' ) ) {
+        SysLib.cout( "cfile holds other data (wrong)\n" );
+        ok = false;
+      }
+      else
+        SysLib.cout( buffer.length + " bytes, successfully completed\n" );
+    }
+
+    // efile's commit was torn, it is either missing or holds what was
+    // written before, never blocks of other files
+    SysLib.cout( "5: read efile....................." );
+    fd = SysLib.open( "efile", "r" );
+    if ( fd == -1 )
+      SysLib.cout( "not on disk, successfully completed\n" );
+    else {
+      byte[] buffer = new byte[SysLib.fsize( fd )];
+      SysLib.read( fd, buffer );
+      SysLib.close( fd );
+      if ( !holds( buffer, 'E' ) ) {
+        SysLib.cout( "efile holds other data (wrong)\n" );
+        ok = false;
+      }
+      else
+        SysLib.cout( buffer.length + " bytes, successfully completed\n" );
+    }
+
+    if ( ok )
+      SysLib.cout( "Correct behavior of journal replay\n" );
+    SysLib.cout( "Test completed\n" );
+  }
+
+  private byte[] fill( int blocks, char c ) {
+    byte[] buffer = new byte[blocks * 512];
+    for ( int i = 0; i < buffer.length; i++ )
+      buffer[i] = (byte)c;
+    return buffer;
+  }
+
+  private boolean holds( byte[] buffer, char c ) {
+    for ( int i = 0; i < buffer.length; i++ )
+      if ( buffer[i] != (byte)c )
+        return false;
+    return true;
+  }
+}
@@ -1,5 +1,7 @@
 import java.lang.reflect.*;
 import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 
 public class Kernel
 {
@@ -34,6 +36,14 @@ public class Kernel
    //              int whence )
    public final static int FORMAT  = 18; // SysLib.format( int files )
    public final static int DELETE  = 19; // SysLib.delete( String fileName )
+   public final static int MKDIR   = 20; // SysLib.mkdir( String path )
+   public final static int RMDIR   = 21; // SysLib.rmdir( String path )
+   public final static int READDIR = 22; // SysLib.readdir( String path,
+   //              List<String> entries )
+   public final static int READV   = 23; // SysLib.readv( int fd, byte buffers[][] )
+   public final static int WRITEV  = 24; // SysLib.writev( int fd, byte buffers[][] )
+   public final static int FSYNC   = 25; // SysLib.fsync( int fd )
+   public final static int FDATASYNC = 26; // SysLib.fdatasync( int fd )
 
    // Predefined file descriptors
    public final static int STDIN  = 0;
@@ -49,20 +59,87 @@ public class Kernel
    private static Disk disk;
    private static Cache cache;
    private static FileSystem fs;
+   private static Flusher flusher;
 
    // Synchronized Queues
    private static SyncQueue waitQueue;  // for threads to wait for their child
    private static SyncQueue ioQueue;    // I/O queue
 
+   // One disk request at a time.  The wakeups in ioQueue aren't tied to
+   // a thread, so a second requester could take the first one's wakeup.
+   // Not a monitor, which a virtual thread waiting for the disk would pin.
+   private final static Lock diskLock = new ReentrantLock( );
+
+   // Makes the virtual threads user programs run on, or null to run
+   // them on platform threads
+   private static ThreadFactory virtualThreads;
+
    private final static int COND_DISK_REQ = 1; // wait condition 
    private final static int COND_DISK_FIN = 2; // wait condition
 
+   // Boot options, set with java -D<option>=<value>
+   private final static int DISK_BLOCKS
+      = Integer.getInteger( "threados.disk.blocks", 1000 );
+   private final static boolean LAZY_FORMAT
+      = Boolean.getBoolean( "threados.format.lazy" );
+   private final static int CACHE_BLOCKS
+      = Integer.getInteger( "threados.cache.blocks", 64 );
+   private final static String CACHE_POLICY
+      = System.getProperty( "threados.cache.policy", "second-chance" );
+   private final static int FLUSH_INTERVAL
+      = Integer.getInteger( "threados.flush.interval", 5000 );
+   private final static int FLUSH_DIRTY_BLOCKS
+      = Integer.getInteger( "threados.flush.dirty", CACHE_BLOCKS / 2 );
+   private final static String SCHEDULER_POLICY
+      = System.getProperty( "threados.scheduler.policy", "round-robin" );
+   private final static int TIME_SLICE
+      = Integer.getInteger( "threados.scheduler.slice", 1000 );
+   private final static int CPUS
+      = Math.max( 1, Integer.getInteger( "threados.scheduler.cpus", 1 ) );
+   private final static int MAX_THREADS
+      = Integer.getInteger( "threados.threads.max", 10000 );
+   private final static boolean VIRTUAL_THREADS
+      = Boolean.getBoolean( "threados.exec.virtual" );
+
    // Standard input
    private static BufferedReader input
       = new BufferedReader( new InputStreamReader( System.in ) );
 
    // The heart of Kernel
    public static int interrupt( int irq, int cmd, int param, Object args ) {
+      // a user thread waits here for its turn on the CPU
+      if ( irq == INTERRUPT_SOFTWARE && scheduler != null ) {
+         scheduler.enterKernel( );
+         try {
+            return dispatch( irq, cmd, param, args );
+         } finally {
+            scheduler.leaveKernel( );
+         }
+      }
+      return dispatch( irq, cmd, param, args );
+   }
+
+   // Called by the file system before a thread waits for a lock of its
+   // own rather than a SyncQueue, so that other threads run meanwhile
+   public static void block( ) {
+      if ( scheduler != null )
+         scheduler.block( );
+   }
+
+   // Called by the file system once that wait is over
+   public static void unblock( ) {
+      if ( scheduler != null )
+         scheduler.unblock( );
+   }
+
+   // Stops ThreadOS as if the power failed right after the last disk
+   // write, so that the next boot sees the disk as it was at that moment
+   public static void crash( ) {
+      syncDisk( );
+      Runtime.getRuntime( ).halt( 1 );
+   }
+
+   private static int dispatch( int irq, int cmd, int param, Object args ) {
       TCB myTcb;
       FileTableEntry ftEnt;
       switch( irq ) {
@@ -70,35 +147,65 @@ public class Kernel
             switch( cmd ) { 
                case BOOT:
                   // instantiate and start a scheduler
-                  scheduler = new Scheduler( ); 
+                  // with a policy for each virtual CPU
+                  SchedulingPolicy[] schedulingPolicies
+                     = new SchedulingPolicy[CPUS];
+                  String policyName = SCHEDULER_POLICY;
+                  if ( Scheduler.createPolicy( policyName ) == null ) {
+                     System.err.println( "threadOS: unknown scheduler policy "
+                                         + policyName );
+                     policyName = "round-robin";
+                  }
+                  for ( int i = 0; i < CPUS; i++ )
+                     schedulingPolicies[i] = Scheduler.createPolicy( policyName );
+                  scheduler = new Scheduler( TIME_SLICE, MAX_THREADS,
+                                             schedulingPolicies );
                   scheduler.start( );
+                  if ( VIRTUAL_THREADS )
+                     virtualThreads = createVirtualThreadFactory( );
 
                   // instantiate and start a disk
-                  disk = new Disk( 1000 );
+                  disk = new Disk( DISK_BLOCKS );
                   disk.start( );
 
-                  // instantiate a cache memory
-                  cache = new Cache( Disk.blockSize, 10 );
+                  // instantiate a cache memory used by the file system
+                  CachePolicy policy = Cache.createPolicy( CACHE_POLICY );
+                  if ( policy == null ) {
+                     System.err.println( "threadOS: unknown cache policy "
+                                         + CACHE_POLICY );
+                     policy = new SecondChancePolicy( );
+                  }
+                  cache = new Cache( Disk.blockSize, CACHE_BLOCKS, policy );
 
                   // instantiate synchronized queues
                   ioQueue = new SyncQueue( );
                   waitQueue = new SyncQueue( scheduler.getMaxThreads( ) );
                   
-                  fs = new FileSystem(1000);
+                  fs = new FileSystem(DISK_BLOCKS, LAZY_FORMAT);
+
+                  // write the file system back in the background
+                  if ( FLUSH_INTERVAL > 0 ) {
+                     flusher = new Flusher( fs, cache, FLUSH_INTERVAL,
+                                            FLUSH_DIRTY_BLOCKS );
+                     flusher.start( );
+                  }
                   return OK;
                case EXEC:
                   return sysExec( ( String[] )args );
                case WAIT:
                   if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
                      int myTid = myTcb.getTid( ); // get my thread ID
-                     return waitQueue.enqueueAndSleep( myTid ); //wait on my tid
-                     // woken up by my child thread
+                     scheduler.block( );
+                     try {
+                        return waitQueue.enqueueAndSleep( myTid ); //wait on my tid
+                        // woken up by my child thread
+                     } finally {
+                        scheduler.unblock( );
+                     }
                   }
                   return ERROR;
                case EXIT:
-                  // Save the file system back to disk on thread exit as a checkpoint.
-                  fs.sync();
-                  
+                  // The file system is written back by the flusher, not here.
                   if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
                      int myPid = myTcb.getPid( ); // get my parent ID
                      int myTid = myTcb.getTid( ); // get my ID
@@ -112,34 +219,61 @@ public class Kernel
                   }
                   return ERROR;
                case SLEEP:   // sleep a given period of milliseconds
-                  scheduler.sleepThread( param ); // param = milliseconds
+                  scheduler.block( );
+                  try {
+                     scheduler.sleepThread( param ); // param = milliseconds
+                  } finally {
+                     scheduler.unblock( );
+                  }
                   return OK;
                case RAWREAD: // read a block of data from disk
-                  while ( disk.read( param, ( byte[] )args ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
+                  scheduler.block( );
+                  try {
+                     diskLock.lock( );
+                     try {
+                        while ( disk.read( param, ( byte[] )args ) == false )
+                           ioQueue.enqueueAndSleep( COND_DISK_REQ );
+                        while ( disk.testAndResetReady( ) == false )
+                           ioQueue.enqueueAndSleep( COND_DISK_FIN );
+                     } finally {
+                        diskLock.unlock( );
+                     }
+                  } finally {
+                     scheduler.unblock( );
+                  }
                   return OK;
                case RAWWRITE: // write a block of data to disk
-                  while ( disk.write( param, ( byte[] )args ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
+                  scheduler.block( );
+                  try {
+                     diskLock.lock( );
+                     try {
+                        while ( disk.write( param, ( byte[] )args ) == false )
+                           ioQueue.enqueueAndSleep( COND_DISK_REQ );
+                        while ( disk.testAndResetReady( ) == false )
+                           ioQueue.enqueueAndSleep( COND_DISK_FIN );
+                     } finally {
+                        diskLock.unlock( );
+                     }
+                  } finally {
+                     scheduler.unblock( );
+                  }
                   return OK;
                case SYNC:     // synchronize disk data to a real file
                   // Sync the file system to disk first, then flush the disk.
                   fs.sync();
-                  
-                  while ( disk.sync( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
+                  syncDisk( );
                   return OK;
                case READ:
                   switch ( param ) {
                      case STDIN:
                         try {
-                           String s = input.readLine(); // read a keyboard input
+                           String s;
+                           scheduler.block( );
+                           try {
+                              s = input.readLine(); // read a keyboard input
+                           } finally {
+                              scheduler.unblock( );
+                           }
                            if ( s == null ) {
                               return ERROR;
                            }
@@ -190,7 +324,10 @@ public class Kernel
                case CWRITE:  // to be implemented in assignment 4
                   return cache.write( param, ( byte[] )args ) ? OK : ERROR;
                case CSYNC:   // to be implemented in assignment 4
-                  cache.sync( );
+                  if ( args != null )  // only the listed blocks
+                     cache.sync( ( int[] )args );
+                  else
+                     cache.sync( );
                   return OK;
                case CFLUSH:  // to be implemented in assignment 4
                   cache.flush( );
@@ -233,6 +370,45 @@ public class Kernel
                    return fs.format(param) ? OK : ERROR;
                case DELETE:
                    return fs.delete((String) args) ? OK : ERROR;
+               case MKDIR:
+                   return fs.mkdir((String) args) ? OK : ERROR;
+               case RMDIR:
+                   return fs.rmdir((String) args) ? OK : ERROR;
+               case READDIR:
+                   Object[] readdirArgs = (Object[]) args;
+                   String[] names = fs.readdir((String) readdirArgs[0]);
+                   if (names == null) {
+                       return ERROR;
+                   }
+                   @SuppressWarnings("unchecked")
+                   java.util.List<String> entries = (java.util.List<String>) readdirArgs[1];
+                   for (String name : names) {
+                       entries.add(name);
+                   }
+                   return names.length;
+               case READV:
+                   ftEnt = getFileTableEntry(param);
+                   if (ftEnt == null) {
+                       return ERROR;
+                   }
+                   return fs.readv(ftEnt, (byte[][]) args);
+               case WRITEV:
+                   ftEnt = getFileTableEntry(param);
+                   if (ftEnt == null) {
+                       return ERROR;
+                   }
+                   return fs.writev(ftEnt, (byte[][]) args);
+               case FSYNC:
+               case FDATASYNC:
+                   ftEnt = getFileTableEntry(param);
+                   if (ftEnt == null) {
+                       return ERROR;
+                   }
+                   if (!(cmd == FSYNC ? fs.fsync(ftEnt) : fs.fdatasync(ftEnt))) {
+                       return ERROR;
+                   }
+                   syncDisk();
+                   return OK;
             }
             return ERROR;
          case INTERRUPT_DISK: // Disk interrupts
@@ -249,6 +425,24 @@ public class Kernel
       return OK;
    }
 
+   // Write the disk image back to the real file
+   private static void syncDisk( ) {
+      scheduler.block( );
+      try {
+         diskLock.lock( );
+         try {
+            while ( disk.sync( ) == false )
+               ioQueue.enqueueAndSleep( COND_DISK_REQ );
+            while ( disk.testAndResetReady( ) == false )
+               ioQueue.enqueueAndSleep( COND_DISK_FIN );
+         } finally {
+            diskLock.unlock( );
+         }
+      } finally {
+         scheduler.unblock( );
+      }
+   }
+
    /**
     * Rets the current file table entry from the TCB or null if it isn't found.
     */
@@ -285,7 +479,9 @@ public class Kernel
             thrObj = thrConst.newInstance( constructorArgs );
          }
          // instantiate a new thread of this object
-         Thread t = new Thread( (Runnable)thrObj );
+         Thread t = ( virtualThreads != null )
+            ? virtualThreads.newThread( (Runnable)thrObj )
+            : new Thread( (Runnable)thrObj );
 
          // add this thread into scheduler's circular list.
          TCB newTcb = scheduler.addThread( t );
@@ -312,4 +508,21 @@ public class Kernel
          return ERROR;
       }
    }
+
+   // Returns Thread.ofVirtual( ).factory( ), or null if this Java has no
+   // virtual threads.  It is looked up by reflection, as virtual threads
+   // came with Java 21 and ThreadOS still builds on older versions.
+   private static ThreadFactory createVirtualThreadFactory( ) {
+      try {
+         Object builder = Thread.class.getMethod( "ofVirtual" ).invoke( null );
+         Method factory
+            = Class.forName( "java.lang.Thread$Builder" ).getMethod( "factory" );
+         return ( ThreadFactory )factory.invoke( builder );
+      }
+      catch ( Exception e ) {
+         System.err.println( "threadOS: virtual threads need Java 21, "
+                             + "using platform threads" );
+         return null;
+      }
+   }
 }
@@ -0,0 +1,40 @@
+import java.util.*;
+
+/**
+ * Least recently used eviction.  The frames are kept in access order so
+ * that both touching a frame and picking a victim are O(1).
+ */
+public class LruPolicy implements CachePolicy {
+
+    /** Frames ordered from least to most recently used. */
+    private LinkedHashSet<Integer> order;
+
+    @Override
+    public void init(int frames) {
+        order = new LinkedHashSet<Integer>(frames * 2);
+    }
+
+    @Override
+    public void accessed(int frame) {
+        order.remove(frame);
+        order.add(frame);
+    }
+
+    @Override
+    public void inserted(int frame, int blockId) {
+        order.add(frame);
+    }
+
+    @Override
+    public void removed(int frame) {
+        order.remove(frame);
+    }
+
+    @Override
+    public int victim(int blockId) {
+        Iterator<Integer> iter = order.iterator();
+        int frame = iter.next();
+        iter.remove();
+        return frame;
+    }
+}
@@ -0,0 +1,132 @@
+import java.util.*;
+
+/**
+ * Multi-level feedback queue scheduling.
+ *
+ * New threads start in the top queue, and a lower queue only runs when the
+ * queues above it are empty.  The top queue's quantum is a quarter of the
+ * time slice and each level below doubles it.  A thread that uses up its
+ * level's quantum, over one run or over several runs cut short by blocking,
+ * moves down a level, so threads that mostly wait for the disk or the
+ * keyboard stay on top and CPU-bound threads sink.  A thread whose wait is
+ * over takes the CPU from a thread on a lower level.  Every few time slices
+ * all threads are moved back to the top so that none of them starves.
+ */
+public class MlfqPolicy implements SchedulingPolicy {
+
+    private static final int LEVELS = 4;
+
+    /** The time slices between moving every thread back to the top. */
+    private static final int BOOST_SLICES = 5;
+
+    /** Where a thread is in the queues. */
+    private static class State {
+        int level;
+
+        /** The milliseconds run at this level so far. */
+        int used;
+    }
+
+    /** The ready threads of each level, the next to run first. */
+    private List<ArrayDeque<TCB>> queues;
+
+    /** The state of every thread, ready or not, by identity. */
+    private Map<TCB, State> states;
+
+    private int topQuantum;
+
+    private int boostInterval;
+
+    private long lastBoost;
+
+    @Override
+    public void init(int timeSlice) {
+        topQuantum = Math.max(1, timeSlice / 4);
+        boostInterval = timeSlice * BOOST_SLICES;
+        lastBoost = System.currentTimeMillis();
+        queues = new ArrayList<ArrayDeque<TCB>>(LEVELS);
+        for (int i = 0; i < LEVELS; i++) {
+            queues.add(new ArrayDeque<TCB>());
+        }
+        states = new IdentityHashMap<TCB, State>();
+    }
+
+    @Override
+    public void added(TCB tcb) {
+        states.put(tcb, new State());
+        queues.get(0).addLast(tcb);
+    }
+
+    @Override
+    public void ready(TCB tcb) {
+        queues.get(states.get(tcb).level).addLast(tcb);
+    }
+
+    @Override
+    public TCB next() {
+        if (System.currentTimeMillis() - lastBoost >= boostInterval) {
+            boost();
+        }
+        for (ArrayDeque<TCB> queue : queues) {
+            if (!queue.isEmpty()) {
+                return queue.pollFirst();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int quantum(TCB tcb) {
+        return topQuantum << states.get(tcb).level;
+    }
+
+    @Override
+    public boolean preempts(TCB ready, TCB running) {
+        return states.get(ready).level < states.get(running).level;
+    }
+
+    @Override
+    public void preempted(TCB tcb, int used) {
+        charge(tcb, used);
+        ready(tcb);
+    }
+
+    @Override
+    public void blocked(TCB tcb, int used) {
+        charge(tcb, used);
+    }
+
+    @Override
+    public void removed(TCB tcb) {
+        states.remove(tcb);
+    }
+
+    /**
+     * Adds the time a thread ran to its level and moves it down once it
+     * has used up the level's quantum.
+     */
+    private void charge(TCB tcb, int used) {
+        State state = states.get(tcb);
+        state.used += used;
+        if (state.used >= quantum(tcb) && state.level < LEVELS - 1) {
+            state.level++;
+            state.used = 0;
+        }
+    }
+
+    /**
+     * Moves every thread back to the top queue.
+     */
+    private void boost() {
+        ArrayDeque<TCB> top = queues.get(0);
+        for (int i = 1; i < LEVELS; i++) {
+            top.addAll(queues.get(i));
+            queues.get(i).clear();
+        }
+        for (State state : states.values()) {
+            state.level = 0;
+            state.used = 0;
+        }
+        lastBoost = System.currentTimeMillis();
+    }
+}
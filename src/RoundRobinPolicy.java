@@ -0,0 +1,57 @@
+import java.util.*;
+
+/**
+ * Round-robin scheduling.  Every thread gets the same time slice and the
+ * ready threads take turns in the order they became ready.
+ */
+public class RoundRobinPolicy implements SchedulingPolicy {
+
+    /** The ready threads, the next to run first. */
+    private ArrayDeque<TCB> queue;
+
+    private int timeSlice;
+
+    @Override
+    public void init(int timeSlice) {
+        this.timeSlice = timeSlice;
+        queue = new ArrayDeque<TCB>();
+    }
+
+    @Override
+    public void added(TCB tcb) {
+        queue.addLast(tcb);
+    }
+
+    @Override
+    public void ready(TCB tcb) {
+        queue.addLast(tcb);
+    }
+
+    @Override
+    public TCB next() {
+        return queue.pollFirst();
+    }
+
+    @Override
+    public int quantum(TCB tcb) {
+        return timeSlice;
+    }
+
+    @Override
+    public boolean preempts(TCB ready, TCB running) {
+        return false;
+    }
+
+    @Override
+    public void preempted(TCB tcb, int used) {
+        queue.addLast(tcb);
+    }
+
+    @Override
+    public void blocked(TCB tcb, int used) {
+    }
+
+    @Override
+    public void removed(TCB tcb) {
+    }
+}
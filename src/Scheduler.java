@@ -1,9 +1,70 @@
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 
+// Scheduler.  The threads run on a number of virtual CPUs, each with its
+// own run queue held by a SchedulingPolicy, which picks the thread to run
+// next and how long it may run.  A CPU whose queue is empty steals a
+// thread from another CPU.  A thread can't be stopped safely at an
+// arbitrary point (Thread.suspend could stop it holding a kernel lock),
+// so a thread whose turn it isn't is suspended when it next makes a
+// system call and resumed when its turn comes.  A thread waiting for a
+// child, the disk, the keyboard or a sleep leaves the run queue until
+// its wait is over.
 public class Scheduler extends Thread
 {
-    private Vector queue;
+    // A virtual CPU.  The fields other than running and guest are guarded
+    // by lock; sliceEnd is signalled when the running thread blocks, exits
+    // or is preempted, and ready when a thread joins the run queue
+    private static class Cpu {
+        final int id;
+        final SchedulingPolicy policy; // holds the run queue
+        volatile Thread running;       // null between turns, set under lock
+        volatile Thread guest;         // let in while the CPU was free, until
+                                       // it leaves the kernel or waits
+        boolean preempt;  // a thread the policy ranks higher ended the slice
+        boolean idle;     // waiting for a thread to run
+        final Condition sliceEnd;
+        final Condition ready;
+
+        Cpu( int id, SchedulingPolicy policy, Lock lock ) {
+            this.id = id;
+            this.policy = policy;
+            sliceEnd = lock.newCondition( );
+            ready = lock.newCondition( );
+        }
+    }
+
+    private Cpu[] cpus;
+    private int nextCpu = 0; // the CPU the next new thread is queued on
     private int timeSlice;
+
+    // The TCB of each live thread, found without scanning the queue.
+    // Threads don't override equals, so they are compared by identity.
+    private Map<Thread, TCB> tcbs = new ConcurrentHashMap<Thread, TCB>( );
+
+    // The CPU whose run queue each live thread belongs to; changed under
+    // lock when a thread is stolen
+    private Map<Thread, Cpu> homes = new ConcurrentHashMap<Thread, Cpu>( );
+
+    // The user threads waiting in the kernel, which leave their CPU free
+    private Set<Thread> blocked = new HashSet<Thread>( );
+
+    // The blocked threads the scheduler took out of the run queues
+    private Set<Thread> parked = new HashSet<Thread>( );
+
+    // How deeply each thread has nested system calls
+    private ThreadLocal<int[]> kernelDepth = new ThreadLocal<int[]>( ) {
+        protected int[] initialValue( ) {
+            return new int[1];
+        }
+    };
+
+    // Guards the CPUs, blocked, parked and the policies; turn is signalled
+    // when a running thread changes or blocks
+    private final ReentrantLock lock = new ReentrantLock( );
+    private final Condition turn = lock.newCondition( );
+
     private static final int DEFAULT_TIME_SLICE = 1000;
 
     // New data added to p161 
@@ -21,7 +82,7 @@ public class Scheduler extends Thread
 
     // A new feature added to p161 
     // Search an available thread ID and provide a new thread with this ID
-    private int getNewTid( ) {
+    private synchronized int getNewTid( ) {
         for ( int i = 0; i < tids.length; i++ ) {
             int tentative = ( nextId + i ) % tids.length;
             if ( tids[tentative] == false ) {
@@ -35,7 +96,7 @@ public class Scheduler extends Thread
 
     // A new feature added to p161 
     // Return the thread ID and set the corresponding tids element to be unused
-    private boolean returnTid( int tid ) {
+    private synchronized boolean returnTid( int tid ) {
         if ( tid >= 0 && tid < tids.length && tids[tid] == true ) {
             tids[tid] = false;
             return true;
@@ -44,18 +105,10 @@ public class Scheduler extends Thread
     }
 
     // A new feature added to p161 
-    // Retrieve the current thread's TCB from the queue
+    // Retrieve the current thread's TCB; every system call does this, so
+    // it is a map lookup rather than a scan of the queue
     public TCB getMyTcb( ) {
-        Thread myThread = Thread.currentThread( ); // Get my thread object
-        synchronized( queue ) {
-            for ( int i = 0; i < queue.size( ); i++ ) {
-            TCB tcb = ( TCB )queue.elementAt( i );
-            Thread thread = tcb.getThread( );
-            if ( thread == myThread ) // if this is my TCB, return it
-                return tcb;
-            }
-        }
-        return null;
+        return tcbs.get( Thread.currentThread( ) );
     }
 
     // A new feature added to p161 
@@ -65,34 +118,49 @@ public class Scheduler extends Thread
     }
 
     public Scheduler( ) {
-        timeSlice = DEFAULT_TIME_SLICE;
-        queue = new Vector( );
-        initTid( DEFAULT_MAX_THREADS );
+        this( DEFAULT_TIME_SLICE, DEFAULT_MAX_THREADS,
+              new SchedulingPolicy[] { new RoundRobinPolicy( ) } );
     }
 
     public Scheduler( int quantum ) {
-        timeSlice = quantum;
-        queue = new Vector( );
-        initTid( DEFAULT_MAX_THREADS );
+        this( quantum, DEFAULT_MAX_THREADS,
+              new SchedulingPolicy[] { new RoundRobinPolicy( ) } );
     }
 
     // A new feature added to p161 
     // A constructor to receive the max number of threads to be spawned
     public Scheduler( int quantum, int maxThreads ) {
+        this( quantum, maxThreads,
+              new SchedulingPolicy[] { new RoundRobinPolicy( ) } );
+    }
+
+    // One virtual CPU is made for each policy
+    public Scheduler( int quantum, SchedulingPolicy[] policies ) {
+        this( quantum, DEFAULT_MAX_THREADS, policies );
+    }
+
+    public Scheduler( int quantum, int maxThreads, SchedulingPolicy[] policies ) {
         timeSlice = quantum;
-        queue = new Vector( );
+        cpus = new Cpu[policies.length];
+        for ( int i = 0; i < cpus.length; i++ ) {
+            policies[i].init( quantum );
+            cpus[i] = new Cpu( i, policies[i], lock );
+        }
         initTid( maxThreads );
     }
 
-    private void schedulerSleep( ) {
-        try {
-            Thread.sleep( timeSlice );
-        } catch ( InterruptedException e ) { }
+    // Returns the scheduling policy with the given name, or null if
+    // there is no such policy
+    public static SchedulingPolicy createPolicy( String name ) {
+        if ( "round-robin".equalsIgnoreCase( name ) )
+            return new RoundRobinPolicy( );
+        else if ( "mlfq".equalsIgnoreCase( name ) )
+            return new MlfqPolicy( );
+        return null;
     }
 
     // A modified addThread of p161 example
     public TCB addThread( Thread t ) {
-        t.setPriority( 2 );
         TCB parentTcb = getMyTcb( ); // get my TCB and find my TID
         int pid = ( parentTcb != null ) ? parentTcb.getTid( ) : -1;
         int tid = getNewTid( ); // get a new TID
@@ -111,7 +179,17 @@ public class Scheduler extends Thread
             }
         }
     
-        queue.add( tcb );
+        tcbs.put( t, tcb );
+        lock.lock( );
+        try {
+            // new threads are spread over the CPUs in turn
+            Cpu home = cpus[nextCpu];
+            nextCpu = ( nextCpu + 1 ) % cpus.length;
+            homes.put( t, home );
+            enqueue( home, tcb, true );
+        } finally {
+            lock.unlock( );
+        }
         return tcb;
     }
 
@@ -131,10 +209,203 @@ public class Scheduler extends Thread
                     // to ensure that system-wide file table entries are removed
                     // when no longer needed
                     SysLib.close( i );
-            return tcb.setTerminated( );
+            tcbs.remove( tcb.getThread( ) );
+            boolean terminated = tcb.setTerminated( );
+
+            // give up the rest of the time slice
+            Cpu home = homes.get( tcb.getThread( ) );
+            if ( home != null ) {
+                lock.lock( );
+                try {
+                    home.sliceEnd.signal( );
+                } finally {
+                    lock.unlock( );
+                }
+            }
+            return terminated;
+        }
+    }
+
+    // Called by the kernel as a system call starts.  A user thread whose
+    // turn it isn't is suspended here until its turn or until a CPU is
+    // free.  Kernel threads and calls made by the kernel go on.
+    public void enterKernel( ) {
+        Thread me = Thread.currentThread( );
+        if ( kernelDepth.get( )[0]++ > 0 || isRunning( me )
+             || !tcbs.containsKey( me ) )
+            return;
+
+        lock.lock( );
+        try {
+            while ( !isRunning( me ) ) {
+                // take over a free CPU until the call returns
+                Cpu free = findFreeCpu( );
+                if ( free != null ) {
+                    free.guest = me;
+                    return;
+                }
+                turn.awaitUninterruptibly( );
+            }
+        } finally {
+            lock.unlock( );
+        }
+    }
+
+    // Called by the kernel as a system call returns; a thread let onto a
+    // free CPU gives it back
+    public void leaveKernel( ) {
+        Thread me = Thread.currentThread( );
+        if ( --kernelDepth.get( )[0] == 0 && isGuest( me ) ) {
+            lock.lock( );
+            try {
+                releaseGuest( me );
+            } finally {
+                lock.unlock( );
+            }
         }
     }
 
+    // Whether it is the thread's turn on its CPU
+    private boolean isRunning( Thread thread ) {
+        Cpu home = homes.get( thread );
+        return home != null && home.running == thread;
+    }
+
+    // A CPU whose own thread and guest are both missing, waiting or gone,
+    // or null.  The caller holds lock.
+    private Cpu findFreeCpu( ) {
+        for ( Cpu cpu : cpus )
+            if ( isIdle( cpu.running ) && isIdle( cpu.guest ) )
+                return cpu;
+        return null;
+    }
+
+    // Whether a thread on a CPU leaves it free.  The caller holds lock.
+    private boolean isIdle( Thread thread ) {
+        return thread == null || blocked.contains( thread ) || !thread.isAlive( );
+    }
+
+    // Whether the thread was let onto a CPU that was free
+    private boolean isGuest( Thread thread ) {
+        for ( Cpu cpu : cpus )
+            if ( cpu.guest == thread )
+                return true;
+        return false;
+    }
+
+    // Gives back the CPU the thread was let onto.  The caller holds lock.
+    private void releaseGuest( Thread thread ) {
+        for ( Cpu cpu : cpus ) {
+            if ( cpu.guest == thread ) {
+                cpu.guest = null;
+                turn.signalAll( );
+            }
+        }
+    }
+
+    // Called by the kernel before the current thread waits; the other
+    // threads may run meanwhile
+    public void block( ) {
+        Thread me = Thread.currentThread( );
+        if ( !tcbs.containsKey( me ) )
+            return;
+
+        lock.lock( );
+        try {
+            blocked.add( me );
+            releaseGuest( me );
+            Cpu home = homes.get( me );
+            if ( home != null && home.running == me ) {
+                turn.signalAll( );
+                home.sliceEnd.signal( ); // give the CPU to the next thread
+            }
+        } finally {
+            lock.unlock( );
+        }
+    }
+
+    // Called by the kernel once the current thread's wait is over; it
+    // rejoins its CPU's run queue if the scheduler took it out
+    public void unblock( ) {
+        Thread me = Thread.currentThread( );
+        lock.lock( );
+        try {
+            blocked.remove( me );
+            TCB tcb = tcbs.get( me );
+            Cpu home = homes.get( me );
+            if ( parked.remove( me ) && tcb != null && home != null )
+                enqueue( home, tcb, false );
+        } finally {
+            lock.unlock( );
+        }
+    }
+
+    // Puts a ready thread into a CPU's run queue.  If that CPU is busy an
+    // idle CPU is woken to steal it, or else the thread takes the CPU from
+    // the running thread if the policy ranks it higher.  The caller holds
+    // lock.
+    private void enqueue( Cpu cpu, TCB tcb, boolean isNew ) {
+        if ( isNew )
+            cpu.policy.added( tcb );
+        else
+            cpu.policy.ready( tcb );
+        cpu.ready.signal( );
+        if ( cpu.running == null )
+            return;
+
+        for ( Cpu other : cpus ) {
+            if ( other.idle ) {
+                other.idle = false; // wake each idle CPU once
+                other.ready.signal( );
+                return;
+            }
+        }
+        TCB runningTcb = tcbs.get( cpu.running );
+        if ( runningTcb != null && cpu.policy.preempts( tcb, runningTcb ) ) {
+            cpu.preempt = true;
+            cpu.sliceEnd.signal( );
+        }
+    }
+
+    // Takes the next thread from the CPU's run queue, or steals one from
+    // the other CPUs, starting with the next, if the queue is empty.  A
+    // stolen thread stays with the thief and starts afresh in its policy.
+    // The caller holds lock.
+    private TCB next( Cpu cpu ) {
+        TCB tcb = cpu.policy.next( );
+        if ( tcb != null )
+            return tcb;
+
+        for ( int i = 1; i < cpus.length; i++ ) {
+            Cpu victim = cpus[( cpu.id + i ) % cpus.length];
+            tcb = victim.policy.next( );
+            if ( tcb != null ) {
+                victim.policy.removed( tcb );
+                cpu.policy.added( tcb );
+                homes.put( tcb.getThread( ), cpu );
+                return cpu.policy.next( );
+            }
+        }
+        return null;
+    }
+
+    // Keeps a blocked thread out of the run queue and tells the policy how
+    // long it ran; false if it isn't blocked.  The caller holds lock.
+    private boolean park( Cpu cpu, TCB tcb, int used ) {
+        if ( !blocked.contains( tcb.getThread( ) ) )
+            return false;
+        parked.add( tcb.getThread( ) );
+        cpu.policy.blocked( tcb, used );
+        return true;
+    }
+
+    // Whether the thread exited; one that ended without calling exit
+    // counts as well
+    private static boolean isFinished( TCB tcb ) {
+        return tcb.getTerminated( ) == true
+            || tcb.getThread( ).getState( ) == Thread.State.TERMINATED;
+    }
+
     public void sleepThread( int milliseconds ) {
         try {
             sleep( milliseconds );
@@ -142,44 +413,101 @@ public class Scheduler extends Thread
     }
     
     // A modified run of p161
+    // CPU 0 runs on the scheduler thread and the others on threads of
+    // their own
     public void run( ) {
-        Thread current = null;
-    
-        this.setPriority( 6 );
-        
+        for ( int i = 1; i < cpus.length; i++ ) {
+            final Cpu cpu = cpus[i];
+            Thread t = new Thread( "CPU " + i ) {
+                public void run( ) {
+                    runCpu( cpu );
+                }
+            };
+            t.setDaemon( true );
+            t.start( );
+        }
+        runCpu( cpus[0] );
+    }
+
+    private void runCpu( Cpu cpu ) {
         while ( true ) {
+            // get the next TCB, waiting for one if there is nothing to run
+            TCB currentTCB;
+            lock.lock( );
             try {
-                // get the next TCB and its thrad
-                if ( queue.size( ) == 0 )
-                    continue;
-                TCB currentTCB = (TCB)queue.firstElement( );
-                if ( currentTCB.getTerminated( ) == true ) {
-                    queue.remove( currentTCB );
-                    returnTid( currentTCB.getTid( ) );
-                    continue;
+                while ( ( currentTCB = next( cpu ) ) == null ) {
+                    cpu.idle = true;
+                    cpu.ready.await( );
                 }
-                current = currentTCB.getThread( );
-                if ( current != null ) {
-                    if ( current.isAlive( ) )
-                        current.setPriority( 4 );
-                    else {
-                        // Spawn must be controlled by Scheduler
-                        // Scheduler must start a new thread
-                        current.start( ); 
-                        current.setPriority( 4 );
-                    }
-                }
-                
-                schedulerSleep( );
-                // System.out.println("* * * Context Switch * * * ");
-                
-                synchronized ( queue ) {
-                    if ( current != null && current.isAlive( ) )
-                        current.setPriority( 2 );
-                    queue.remove( currentTCB ); // rotate this TCB to the end
-                    queue.add( currentTCB );
+                cpu.idle = false;
+                if ( isFinished( currentTCB ) ) {
+                    remove( cpu, currentTCB );
+                    continue;
                 }
-            } catch ( NullPointerException e3 ) { };
+                if ( park( cpu, currentTCB, 0 ) ) // blocked before its turn
+                    continue;
+            } catch ( InterruptedException e ) {
+                return;
+            } finally {
+                lock.unlock( );
+            }
+
+            int used = runSlice( cpu, currentTCB );
+
+            lock.lock( );
+            try {
+                if ( isFinished( currentTCB ) )
+                    remove( cpu, currentTCB );
+                else if ( !park( cpu, currentTCB, used ) )
+                    cpu.policy.preempted( currentTCB, used ); // back to the run queue
+            } finally {
+                lock.unlock( );
+            }
+        }
+    }
+
+    // Forgets a thread that exited.  The caller holds lock.
+    private void remove( Cpu cpu, TCB tcb ) {
+        tcbs.remove( tcb.getThread( ) );
+        homes.remove( tcb.getThread( ) );
+        returnTid( tcb.getTid( ) );
+        cpu.policy.removed( tcb );
+    }
+
+    // Gives the thread the CPU until its quantum is over, it blocks, it
+    // exits or it is preempted, and returns the milliseconds it ran
+    private int runSlice( Cpu cpu, TCB tcb ) {
+        Thread thread = tcb.getThread( );
+        long quantum = 0;
+        long remaining = 0;
+        lock.lock( );
+        try {
+            // a guest keeps the CPU until its system call returns; the
+            // thread's own turn ends any CPU it was a guest on
+            while ( !isIdle( cpu.guest ) && cpu.guest != thread )
+                turn.awaitUninterruptibly( );
+            releaseGuest( thread );
+            cpu.running = thread;
+            cpu.preempt = false;
+            turn.signalAll( );
+
+            // Spawn must be controlled by Scheduler
+            // Scheduler must start a new thread
+            if ( thread.getState( ) == Thread.State.NEW )
+                thread.start( );
+
+            quantum = TimeUnit.MILLISECONDS.toNanos( cpu.policy.quantum( tcb ) );
+            remaining = quantum;
+            while ( remaining > 0 && tcb.getTerminated( ) == false
+                    && !blocked.contains( thread ) && !cpu.preempt )
+                remaining = cpu.sliceEnd.awaitNanos( remaining );
+        } catch ( InterruptedException e ) {
+            Thread.currentThread( ).interrupt( );
+        } finally {
+            cpu.running = null;
+            turn.signalAll( );
+            lock.unlock( );
         }
+        return (int)TimeUnit.NANOSECONDS.toMillis( quantum - Math.max( remaining, 0 ) );
     }
 }
@@ -0,0 +1,127 @@
+/**
+ * Runs several threads at once that compute, sleep and use files, to
+ * exercise the scheduler on one or more CPUs.  Boot with, for example,
+ * -Dthreados.scheduler.policy=mlfq -Dthreados.scheduler.cpus=4 and run
+ * "l SchedulerTest 8".  Each worker writes its own file, which the parent
+ * checks once it has joined every worker.
+ */
+class SchedulerTest extends Thread {
+  final static int DEFAULTWORKERS = 8;
+  final static int ROUNDS = 5;
+  final static int BLOCKS = 4;
+  final int workers;
+  final int worker; // -1 in the parent
+
+  public SchedulerTest( String args[] ) {
+    if ( args.length > 1 && args[0].equals( "worker" ) ) {
+      workers = 0;
+      worker = Integer.parseInt( args[1] );
+    }
+    else {
+      workers = args.length > 0 ? Integer.parseInt( args[0] ) : DEFAULTWORKERS;
+      worker = -1;
+    }
+  }
+
+  public SchedulerTest( ) {
+    workers = DEFAULTWORKERS;
+    worker = -1;
+  }
+
+  public void run( ) {
+    if ( worker >= 0 )
+      work( );
+    else
+      parent( );
+    SysLib.exit( );
+  }
+
+  private void parent( ) {
+    SysLib.cout( "1: exec " + workers + " workers..............." );
+    long start = System.currentTimeMillis( );
+    int started = 0;
+    for ( int i = 0; i < workers; i++ ) {
+      String[] cmd = { "SchedulerTest", "worker", String.valueOf( i ) };
+      if ( SysLib.exec( cmd ) != -1 )
+        started++;
+    }
+    if ( started != workers ) {
+      SysLib.cout( "only " + started + " started (wrong)\n" );
+      return;
+    }
+    SysLib.cout( "successfully completed\n" );
+
+    SysLib.cout( "2: join every worker.............." );
+    for ( int i = 0; i < workers; i++ )
+      if ( SysLib.join( ) == -1 ) {
+        SysLib.cout( "join " + i + " failed (wrong)\n" );
+        return;
+      }
+    SysLib.cout( "successfully completed in "
+                 + ( System.currentTimeMillis( ) - start ) + "ms\n" );
+
+    SysLib.cout( "3: check the workers' files......" );
+    boolean ok = true;
+    for ( int i = 0; i < workers; i++ ) {
+      int fd = SysLib.open( "sched" + i, "r" );
+      byte[] buffer = new byte[BLOCKS * 512];
+      if ( fd == -1 || SysLib.read( fd, buffer ) != buffer.length
+           || !holds( buffer, i ) ) {
+        SysLib.cout( "sched" + i + " is wrong\n" );
+        ok = false;
+      }
+      if ( fd != -1 )
+        SysLib.close( fd );
+      SysLib.delete( "sched" + i );
+    }
+    if ( ok ) {
+      SysLib.cout( "successfully completed\n" );
+      SysLib.cout( "Correct behavior of the scheduler\n" );
+    }
+    SysLib.cout( "Test completed\n" );
+  }
+
+  private void work( ) {
+    String file = "sched" + worker;
+    long sum = 0;
+    for ( int round = 0; round < ROUNDS; round++ ) {
+      // a burst of computing, long enough to use up a time slice
+      for ( int i = 0; i < 20000000; i++ )
+        sum += i % ( worker + 3 );
+      SysLib.sleep( 10 * ( worker % 3 ) );
+
+      // the file is written in two halves and read back the same way
+      byte[][] buffers = { new byte[BLOCKS / 2 * 512], new byte[BLOCKS / 2 * 512] };
+      for ( int b = 0; b < buffers.length; b++ )
+        for ( int i = 0; i < buffers[b].length; i++ )
+          buffers[b][i] = (byte)( round == ROUNDS - 1 ? worker : round );
+      int fd = SysLib.open( file, "w" );
+      if ( SysLib.writev( fd, buffers ) != BLOCKS * 512 ) {
+        SysLib.cout( file + ": writev failed\n" );
+        SysLib.close( fd );
+        return;
+      }
+      SysLib.close( fd );
+
+      fd = SysLib.open( file, "r" );
+      byte[][] read = { new byte[BLOCKS / 2 * 512], new byte[BLOCKS / 2 * 512] };
+      int size = SysLib.readv( fd, read );
+      SysLib.close( fd );
+      if ( size != BLOCKS * 512 || !holds( read[0], buffers[0][0] )
+           || !holds( read[1], buffers[0][0] ) ) {
+        SysLib.cout( file + ": read back wrong data in round " + round + "\n" );
+        SysLib.delete( file ); // the parent reports it missing
+        return;
+      }
+    }
+    if ( sum < 0 )
+      SysLib.cout( "" ); // keeps the computing from being optimized away
+  }
+
+  private boolean holds( byte[] buffer, int value ) {
+    for ( int i = 0; i < buffer.length; i++ )
+      if ( buffer[i] != (byte)value )
+        return false;
+    return true;
+  }
+}
@@ -0,0 +1,69 @@
+/**
+ * A scheduling policy for the Scheduler.
+ *
+ * The policy holds the threads that are ready to run and decides which one
+ * runs next and for how long.  The scheduler informs it about every thread
+ * that becomes ready, uses up its quantum, blocks or exits.  A thread taken
+ * by next belongs to the scheduler until it is handed back by one of those
+ * calls.  The scheduler serializes all calls.
+ */
+public interface SchedulingPolicy {
+
+    /**
+     * Resets the policy.
+     *
+     * @param timeSlice The scheduler's time slice in milliseconds.
+     */
+    void init(int timeSlice);
+
+    /**
+     * A new thread is ready to run.
+     */
+    void added(TCB tcb);
+
+    /**
+     * A thread that blocked is ready to run again.
+     */
+    void ready(TCB tcb);
+
+    /**
+     * Chooses the thread to run next and takes it out of the ready threads.
+     *
+     * @return The thread or null if no thread is ready.
+     */
+    TCB next();
+
+    /**
+     * The time the thread returned by next may run.
+     *
+     * @return The quantum in milliseconds.
+     */
+    int quantum(TCB tcb);
+
+    /**
+     * Whether a thread that just became ready should take the CPU from the
+     * running thread before its quantum is over.
+     */
+    boolean preempts(TCB ready, TCB running);
+
+    /**
+     * The thread ran for its whole quantum, or was preempted, and is still
+     * ready to run.
+     *
+     * @param used The milliseconds it ran.
+     */
+    void preempted(TCB tcb, int used);
+
+    /**
+     * The thread started to wait in the kernel.  ready is called once its
+     * wait is over.
+     *
+     * @param used The milliseconds it ran before blocking.
+     */
+    void blocked(TCB tcb, int used);
+
+    /**
+     * The thread exited.
+     */
+    void removed(TCB tcb);
+}
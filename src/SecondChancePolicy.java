@@ -0,0 +1,53 @@
+
+/**
+ * The enhanced second chance (clock) algorithm.  Each frame has a reference
+ * bit which is set on access and cleared as the clock hand sweeps past it.
+ */
+public class SecondChancePolicy implements CachePolicy {
+
+    private boolean[] reference;
+    private boolean[] used;
+    private int hand;
+
+    @Override
+    public void init(int frames) {
+        reference = new boolean[frames];
+        used = new boolean[frames];
+        hand = frames - 1;
+    }
+
+    @Override
+    public void accessed(int frame) {
+        reference[frame] = true;
+    }
+
+    @Override
+    public void inserted(int frame, int blockId) {
+        used[frame] = true;
+        reference[frame] = true;
+    }
+
+    @Override
+    public void removed(int frame) {
+        used[frame] = false;
+        reference[frame] = false;
+    }
+
+    @Override
+    public int victim(int blockId) {
+        while (true) {
+            hand = (hand + 1) % reference.length;
+            if (!used[hand]) {
+                continue;
+            }
+            if (reference[hand]) {
+                // Give the frame a second chance.
+                reference[hand] = false;
+            }
+            else {
+                used[hand] = false;
+                return hand;
+            }
+        }
+    }
+}
@@ -1,37 +1,174 @@
+import java.util.BitSet;
 
 public class SuperBlock {
 
     public final static int DEFAULT_INODE_BLOCKS = 64;
-    
+
+    private final static int INODES_PER_BLOCK = Disk.blockSize / Inode.iNodeSize;
+
+    /** Marks a disk that tracks free space with a bitmap. */
+    public final static int BITMAP_FORMAT = 1;
+
+    /** Marks a disk whose inodes and index blocks use 32 bit block numbers. */
+    public final static int WIDE_POINTER_FORMAT = 2;
+
+    /** Marks a disk with a metadata journal at its end. */
+    public final static int JOURNAL_FORMAT = 3;
+
+    /** The format written by format().  Older bitmap disks are migrated on mount. */
+    public final static int CURRENT_FORMAT = JOURNAL_FORMAT;
+
+    /** The size of the journal region made by format. */
+    public final static int DEFAULT_JOURNAL_BLOCKS = 32;
+
+    /** The state written by a sync that left everything on the disk. */
+    public final static int STATE_CLEAN = 1;
+
+    /** The state written before the first change after a sync. */
+    public final static int STATE_DIRTY = 2;
+
     public int totalBlocks;
     public int inodeBlocks;
+
+    /**
+     * The lowest free block.  Free space is tracked by the bitmap but the
+     * hint is still stored at its original offset in the superblock.
+     */
     public int freeList;
-    
+
+    public int format;
+
+    /**
+     * The number of inode blocks written since the last format.  The rest
+     * are written the first time one of their inodes is allocated.
+     */
+    public int initializedInodeBlocks;
+
+    /**
+     * Whether the disk was synced after its last change.  Disks written
+     * before the state was stored read as 0 and are treated as dirty.
+     */
+    public int state;
+
+    /** Counts the mounts and formats of the disk. */
+    public int generation;
+
+    /** The first block of the journal region, which runs to the end of the disk. */
+    public int journalStart;
+
+    /** The size of the journal region or 0 if the disk has no journal. */
+    public int journalBlocks;
+
+    /** Whether the disk was clean when it was mounted. */
+    private boolean mountedClean;
+
+    /**
+     * The data blocks that were allocated at an unclean mount and haven't
+     * been found in a file or freed since.  Null when no check is running.
+     */
+    private BitSet unverified;
+
+    /** Free space map stored in the blocks following the inodes. */
+    private BlockBitmap bitmap;
+
+    /** Whether format leaves the inode blocks to be written on first use. */
+    private final boolean lazyInodeTable;
+
     public SuperBlock(int totalBlocks) {
+        this(totalBlocks, false);
+    }
+
+    /**
+     * Loads the superblock, formatting the disk if it isn't valid.  The
+     * last commit in the journal is replayed first.
+     *
+     * @param totalBlocks The number of blocks on the disk.
+     * @param lazyInodeTable If true format only writes the first inode block.
+     */
+    public SuperBlock(int totalBlocks, boolean lazyInodeTable) {
+        this.lazyInodeTable = lazyInodeTable;
 
         // Read data from disk.
         byte[] buffer = new byte[Disk.blockSize];
-        if (SysLib.rawread(0, buffer) == Kernel.ERROR) {
+        if (SysLib.cread(0, buffer) == Kernel.ERROR) {
             throw new FileSystemException("Could not read superblock.");
         }
+        int bitmapStart = parse(buffer);
+
+        // The journal may hold a newer superblock.  If this one is unusable
+        // the journal is looked for where format puts it.
+        int logStart = journalStart;
+        int logBlocks = journalBlocks;
+        if (this.format != JOURNAL_FORMAT || this.totalBlocks != totalBlocks || !hasValidJournal()) {
+            logStart = totalBlocks - DEFAULT_JOURNAL_BLOCKS;
+            logBlocks = this.totalBlocks == totalBlocks && this.format >= 0 && this.format < JOURNAL_FORMAT ?
+                0 : DEFAULT_JOURNAL_BLOCKS;
+        }
+        int replayed = logStart > 0 ? Journal.replay(logStart, logBlocks) : 0;
+        if (replayed > 0) {
+            SysLib.cread(0, buffer);
+            bitmapStart = parse(buffer);
+
+            // After a clean stop the last commit is replayed as well, harmlessly.
+            if (state != STATE_CLEAN) {
+                SysLib.cerr("threadOS: replayed " + replayed + " blocks from the journal.\n");
+            }
+        }
 
-        this.totalBlocks = SysLib.bytes2int(buffer, 0);
-        this.inodeBlocks = SysLib.bytes2int(buffer, 4);
-        this.freeList = SysLib.bytes2int(buffer, 8);
-        
         // Check for a super block that does not appear to be valid.
         // If it isn't reformat the disk.
-        if (this.totalBlocks != totalBlocks || this.inodeBlocks <= 0 || this.freeList <= 0) {
+        boolean valid = this.totalBlocks == totalBlocks && this.inodeBlocks > 0;
+        if (valid && (this.format == BITMAP_FORMAT || this.format == WIDE_POINTER_FORMAT ||
+                this.format == JOURNAL_FORMAT)) {
+            if (this.format != JOURNAL_FORMAT) {
+                journalStart = totalBlocks;
+                journalBlocks = 0;
+            }
+            valid = bitmapStart >= getRequiredBlocksForInodes() + 1 &&
+                bitmapStart + BlockBitmap.blocksNeeded(totalBlocks) <= journalStart &&
+                (this.format != JOURNAL_FORMAT || hasValidJournal());
+            if (valid) {
+                bitmap = new BlockBitmap(totalBlocks, bitmapStart);
+                valid = bitmap.load();
+            }
+        }
+        else if (valid && this.format == 0 && this.freeList > 0) {
+            // Written before the bitmap existed.
+            journalStart = totalBlocks;
+            journalBlocks = 0;
+            valid = convertFreeList();
+        }
+        else {
+            valid = false;
+        }
+
+        if (!valid) {
             SysLib.cerr("WARNING: The disk is being auto formatted.\n");
             this.totalBlocks = totalBlocks;
+            this.generation = 0;
             format();
+            mountedClean = true;
+        }
+        else {
+            if (initializedInodeBlocks <= 0 || initializedInodeBlocks > getRequiredBlocksForInodes()) {
+                // Older disks wrote every inode block when they were formatted.
+                initializedInodeBlocks = getRequiredBlocksForInodes();
+            }
+
+            // The state stays as it was found until the disk is changed or synced.
+            // The journal keeps the bitmap in step with the inodes, but a disk
+            // that wasn't synced is still checked in case it was written
+            // before the journal existed.
+            mountedClean = state == STATE_CLEAN;
+            generation++;
+            writeSuperBlock();
         }
     }
-    
+
     public void format() {
         format(DEFAULT_INODE_BLOCKS);
     }
-    
+
     public void format(int inodeBlocks) {
         synchronized (this) {
             if (inodeBlocks <= 0) {
@@ -39,98 +176,414 @@ public class SuperBlock {
             }
 
             this.inodeBlocks = inodeBlocks;
+            this.format = CURRENT_FORMAT;
+            this.journalBlocks = totalBlocks >= 8 * DEFAULT_JOURNAL_BLOCKS ? DEFAULT_JOURNAL_BLOCKS : 0;
+            this.journalStart = totalBlocks - journalBlocks;
+            this.state = STATE_CLEAN;
+            this.generation++;
+            this.unverified = null;
             formatInodes();
-            formatFreeList();
+            formatBitmap();
             sync();
         }
     }
-    
+
     public int getFreeBlock() {
         synchronized (this) {
-            if (this.freeList < 0) {
-                // The blocks are exhausted
+            // The blocks are exhausted when the bitmap has nothing free.
+            markDirty();
+            int block = bitmap.allocate();
+            if (block < 0) {
                 return Kernel.ERROR;
             }
+            Journal.allocate(block);
+            logBitmap();
+            return block;
+        }
+    }
 
-            byte[] buffer = new byte[Disk.blockSize];
-            if (SysLib.rawread(this.freeList, buffer) == Kernel.ERROR) {
+    /**
+     * Allocates count contiguous blocks.
+     *
+     * @return The first block of the run or Kernel.ERROR if there is no such run.
+     */
+    public int getFreeBlocks(int count) {
+        synchronized (this) {
+            markDirty();
+            int block = bitmap.allocateRun(count);
+            if (block < 0) {
                 return Kernel.ERROR;
             }
-
-            int result = this.freeList;
-            this.freeList = SysLib.bytes2int(buffer, 0);
-            return result;
+            for (int i = 0; i < count; i++) {
+                Journal.allocate(block + i);
+            }
+            logBitmap();
+            return block;
         }
     }
-    
+
     public boolean returnBlock(int block) {
         synchronized (this) {
-            if (block < getInitialFreeBlock() || block >= this.totalBlocks) {
+            if (!isDataBlock(block)) {
                 return false;
             }
+            markDirty();
+            if (unverified != null) {
+                unverified.clear(block);
+            }
+            Journal.revoke(block);
+            if (!bitmap.free(block)) {
+                return false;
+            }
+            logBitmap();
+            return true;
+        }
+    }
+
+    public void sync() {
+        synchronized (this) {
+            logBitmap();
+            this.freeList = bitmap.firstFree();
+            writeSuperBlock();
+        }
+    }
+
+    /**
+     * Adds a journal to a disk formatted before journals existed, if the
+     * blocks at the end of the disk are free.  Must be called before the
+     * journal is opened.
+     *
+     * @return true if the disk has a journal.
+     */
+    public boolean addJournal() {
+        synchronized (this) {
+            if (format == JOURNAL_FORMAT) {
+                return journalBlocks > 0;
+            }
+            int start = totalBlocks - DEFAULT_JOURNAL_BLOCKS;
+            for (int block = start; block < totalBlocks; block++) {
+                if (!isDataBlock(block) || !bitmap.isFree(block)) {
+                    SysLib.cerr("threadOS: no room for a journal at the end of the disk.\n");
+                    return false;
+                }
+            }
+            for (int block = start; block < totalBlocks; block++) {
+                bitmap.setUsed(block);
+            }
+            journalStart = start;
+            journalBlocks = DEFAULT_JOURNAL_BLOCKS;
+            format = JOURNAL_FORMAT;
+            sync();
+            return true;
+        }
+    }
 
+    /**
+     * Writes the dirty state to block 0 unless it is already there.  Must be
+     * called before the first change to the disk after a sync, so that a
+     * crash before the next sync is noticed on the next mount.
+     */
+    public void markDirty() {
+        synchronized (this) {
+            if (state != STATE_DIRTY) {
+                state = STATE_DIRTY;
+                writeSuperBlock();
+            }
+        }
+    }
 
-            byte[] buffer = new byte[Disk.blockSize];
-            SysLib.int2bytes(this.freeList, buffer, 0);
-            if (SysLib.rawwrite(block, buffer) == Kernel.ERROR) {
+    /**
+     * Writes the clean state to block 0.  Called at the end of a sync once
+     * everything else has been written.  A disk stays dirty while a check
+     * is running so the check is repeated if the system stops first.
+     */
+    public void markClean() {
+        synchronized (this) {
+            if (state != STATE_CLEAN && unverified == null) {
+                state = STATE_CLEAN;
+                writeSuperBlock();
+            }
+        }
+    }
+
+    /**
+     * Whether the disk had been synced after its last change when it was
+     * mounted.  If it wasn't the bitmap may disagree with the inodes.
+     */
+    public boolean wasMountedClean() {
+        return mountedClean;
+    }
+
+    /**
+     * Starts a check of the bitmap.  Every allocated data block is suspect
+     * until verifyBlock finds it in a file or it is freed.
+     */
+    public void beginCheck() {
+        synchronized (this) {
+            unverified = new BitSet(totalBlocks);
+            for (int block = 0; block < totalBlocks; block++) {
+                if (isDataBlock(block) && !bitmap.isFree(block)) {
+                    unverified.set(block);
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether a check started by beginCheck is still running.
+     */
+    public boolean isChecking() {
+        synchronized (this) {
+            return unverified != null;
+        }
+    }
+
+    /**
+     * Records that a file points to the block.  A block a file points to
+     * that the bitmap has as free is allocated again.
+     *
+     * @return true if the bitmap had to be repaired.
+     */
+    public boolean verifyBlock(int block) {
+        synchronized (this) {
+            if (unverified == null || !isDataBlock(block)) {
                 return false;
             }
+            unverified.clear(block);
+            if (bitmap.isFree(block)) {
+                bitmap.setUsed(block);
+                logBitmap();
+                return true;
+            }
+            return false;
+        }
+    }
 
-            this.freeList = block;
-            return true;
+    /**
+     * Ends the check, freeing the blocks that no file points to.  Must only be
+     * called once every inode has been verified.  Blocks allocated since the
+     * check began were never suspect, so they are not affected.
+     *
+     * @return The number of blocks freed.
+     */
+    public int endCheck() {
+        synchronized (this) {
+            if (unverified == null) {
+                return 0;
+            }
+            int freed = 0;
+            for (int block = unverified.nextSetBit(0); block >= 0; block = unverified.nextSetBit(block + 1)) {
+                if (bitmap.free(block)) {
+                    freed++;
+                }
+            }
+            unverified = null;
+            logBitmap();
+            return freed;
         }
     }
-    
-    public void sync() {
+
+    /**
+     * Stops a check without freeing anything.
+     */
+    public void abandonCheck() {
+        synchronized (this) {
+            unverified = null;
+        }
+    }
+
+    /**
+     * Makes sure the block holding the inode has been written since the last
+     * format.  Must be called before the inode is given to a new file.
+     */
+    public void initializeInode(short iNumber) {
         synchronized (this) {
-            byte[] buffer = new byte[Disk.blockSize];
-            SysLib.int2bytes(totalBlocks, buffer, 0);
-            SysLib.int2bytes(inodeBlocks, buffer, 4);
-            SysLib.int2bytes(freeList, buffer, 8);
-            if (SysLib.rawwrite(0, buffer) == Kernel.ERROR) {
-                throw new FileSystemException("Could not write super block.");
+            int blocks = iNumber / INODES_PER_BLOCK + 1;
+            if (blocks > initializedInodeBlocks) {
+                writeInodeBlocks(blocks);
+                writeSuperBlock();
             }
         }
     }
-    
+
+    /**
+     * Whether the inode's block has been written since the last format.
+     * Inodes in other blocks are unused.
+     */
+    public boolean isInodeInitialized(short iNumber) {
+        synchronized (this) {
+            return iNumber / INODES_PER_BLOCK < initializedInodeBlocks;
+        }
+    }
+
+    /**
+     * Whether the block can hold file data (it isn't the superblock,
+     * an inode block or part of the bitmap).
+     */
+    public boolean isDataBlock(int block) {
+        if (block < getRequiredBlocksForInodes() + 1 || block >= this.journalStart) {
+            return false;
+        }
+        return block < bitmap.getStart() || block >= bitmap.getStart() + bitmap.getBlocks();
+    }
+
+    /**
+     * Whether the data block is currently unallocated.
+     */
+    public boolean isFree(int block) {
+        synchronized (this) {
+            return isDataBlock(block) && bitmap.isFree(block);
+        }
+    }
+
+    private void writeSuperBlock() {
+        byte[] buffer = new byte[Disk.blockSize];
+        SysLib.int2bytes(totalBlocks, buffer, 0);
+        SysLib.int2bytes(inodeBlocks, buffer, 4);
+        SysLib.int2bytes(freeList, buffer, 8);
+        SysLib.int2bytes(format, buffer, 12);
+        SysLib.int2bytes(bitmap.getStart(), buffer, 16);
+        SysLib.int2bytes(initializedInodeBlocks, buffer, 20);
+        SysLib.int2bytes(state, buffer, 24);
+        SysLib.int2bytes(generation, buffer, 28);
+        SysLib.int2bytes(journalStart, buffer, 32);
+        SysLib.int2bytes(journalBlocks, buffer, 36);
+        if (Journal.write(0, buffer) == Kernel.ERROR) {
+            throw new FileSystemException("Could not write super block.");
+        }
+    }
+
+    /**
+     * Reads the fields of block 0.
+     *
+     * @return The first block of the bitmap.
+     */
+    private int parse(byte[] buffer) {
+        this.totalBlocks = SysLib.bytes2int(buffer, 0);
+        this.inodeBlocks = SysLib.bytes2int(buffer, 4);
+        this.freeList = SysLib.bytes2int(buffer, 8);
+        this.format = SysLib.bytes2int(buffer, 12);
+        this.initializedInodeBlocks = SysLib.bytes2int(buffer, 20);
+        this.state = SysLib.bytes2int(buffer, 24);
+        this.generation = SysLib.bytes2int(buffer, 28);
+        this.journalStart = SysLib.bytes2int(buffer, 32);
+        this.journalBlocks = SysLib.bytes2int(buffer, 36);
+        return SysLib.bytes2int(buffer, 16);
+    }
+
+    /**
+     * Writes the changed bitmap blocks through the journal, so that a block
+     * is allocated or freed in the same commit as the inode that uses it.
+     */
+    private void logBitmap() {
+        if (!bitmap.sync()) {
+            throw new FileSystemException("Could not write free block bitmap.");
+        }
+    }
+
+    /**
+     * Whether the journal region lies at the end of the disk, after the
+     * inodes.
+     */
+    private boolean hasValidJournal() {
+        return journalBlocks > 2 && journalStart > getRequiredBlocksForInodes() &&
+            journalStart + journalBlocks == totalBlocks;
+    }
+
     private int getRequiredBlocksForInodes() {
-        int inodesPerBlock = Disk.blockSize / Inode.iNodeSize;
-        int neededInodeBlocks = inodeBlocks / inodesPerBlock;
-        if (inodeBlocks % inodesPerBlock > 0) {
+        int neededInodeBlocks = inodeBlocks / INODES_PER_BLOCK;
+        if (inodeBlocks % INODES_PER_BLOCK > 0) {
             neededInodeBlocks++;
         }
         return neededInodeBlocks;
     }
-    
-    private int getInitialFreeBlock() {
-        return getRequiredBlocksForInodes() + 1;
-    }
-    
+
     private void formatInodes() {
-        // Write out the inodes.
-        // Note: this is very inefficient, it would be nice to write multiple inodes
-        //       at the same time to the same block or once all of the code is written
-        //       we could take a shot at using cache reads and writes.
-        for (short iNumber = 0; iNumber < inodeBlocks; iNumber++) {
-            // Create an empty and unused inode.
-            Inode inode = new Inode();
-            inode.length = 0;
-            inode.count = 0;
-            inode.flag = 0;
-            inode.toDisk(iNumber);
-        }
-    }
-    
-    private void formatFreeList() {
-        this.freeList = getInitialFreeBlock();
+        // A lazy format only writes the block holding the root directory's inode.
+        initializedInodeBlocks = 0;
+        writeInodeBlocks(lazyInodeTable ? 1 : getRequiredBlocksForInodes());
+    }
+
+    /**
+     * Writes empty inode blocks up to count.  Each block is built in memory
+     * and written once rather than read and written for every inode.
+     */
+    private void writeInodeBlocks(int count) {
+        // Create an empty and unused inode.
+        Inode inode = new Inode();
+        inode.length = 0;
+        inode.count = 0;
+        inode.flag = 0;
+
         byte[] buffer = new byte[Disk.blockSize];
-        for (int i = this.freeList; i < totalBlocks; i++) {
-            // -1 is the end of the free list.
-            int next = (i + 1 == totalBlocks) ? -1 : i + 1;
-            SysLib.int2bytes(next, buffer, 0);
-            if (SysLib.rawwrite(i, buffer) == Kernel.ERROR) {
-                throw new FileSystemException("Failed to write during format.");
+        for (int offset = 0; offset < buffer.length; offset += Inode.iNodeSize) {
+            inode.toBytes(buffer, offset);
+        }
+        for (int block = initializedInodeBlocks; block < count; block++) {
+            if (Journal.write(1 + block, buffer) == Kernel.ERROR) {
+                throw new FileSystemException("Could not write inode block.");
+            }
+        }
+        initializedInodeBlocks = Math.max(initializedInodeBlocks, count);
+    }
+
+    private void formatBitmap() {
+        // The bitmap goes right after the inodes and everything up to the journal is free.
+        // Only the bitmap blocks are written, not the free blocks themselves.
+        int start = getRequiredBlocksForInodes() + 1;
+        bitmap = new BlockBitmap(totalBlocks, start);
+        for (int i = start + bitmap.getBlocks(); i < journalStart; i++) {
+            bitmap.free(i);
+        }
+        bitmap.markAllDirty();
+    }
+
+    /**
+     * Builds the bitmap from the linked free list used by older disks.
+     *
+     * @return true if the free list could be converted.
+     */
+    private boolean convertFreeList() {
+        // Walk the free list, guarding against cycles.
+        BitSet free = new BitSet(totalBlocks);
+        byte[] buffer = new byte[Disk.blockSize];
+        int block = this.freeList;
+        int firstData = getRequiredBlocksForInodes() + 1;
+        while (block >= 0) {
+            if (block < firstData || block >= totalBlocks || free.get(block)) {
+                return false;
+            }
+            free.set(block);
+            if (SysLib.cread(block, buffer) == Kernel.ERROR) {
+                return false;
+            }
+            block = SysLib.bytes2int(buffer, 0);
+        }
+
+        // Store the bitmap in the first free run that is large enough.
+        int needed = BlockBitmap.blocksNeeded(totalBlocks);
+        int start = -1;
+        for (int i = free.nextSetBit(0); i >= 0; i = free.nextSetBit(i + 1)) {
+            if (free.nextClearBit(i) - i >= needed) {
+                start = i;
+                break;
+            }
+            i = free.nextClearBit(i);
+        }
+        if (start < 0) {
+            return false;
+        }
+
+        bitmap = new BlockBitmap(totalBlocks, start);
+        for (int i = free.nextSetBit(0); i >= 0; i = free.nextSetBit(i + 1)) {
+            if (i < start || i >= start + needed) {
+                bitmap.free(i);
             }
         }
+        bitmap.markAllDirty();
+        this.format = BITMAP_FORMAT;
+        SysLib.cerr("threadOS: converted the free list to a block bitmap.\n");
+        sync();
+        return true;
     }
 }
@@ -0,0 +1,78 @@
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+// Replaces the SyncQueue in threados.jar, keeping its behaviour: each
+// condition keeps the tids it was woken with, so a wakeup that comes
+// before the sleep isn't lost.  Threads wait on a Condition rather than
+// in Object.wait, so a virtual thread waiting here gives its carrier
+// thread up instead of pinning it.  A condition's queue is made the
+// first time it is used, as the wait queue has one for every thread ID.
+public class SyncQueue
+{
+    private static final int COND_MAX = 10;
+    private static final int NO_PID = -1;
+
+    // The tids a condition was woken with, oldest first
+    private static class QueueNode {
+        final ReentrantLock lock = new ReentrantLock( );
+        final Condition woken = lock.newCondition( );
+        final Deque<Integer> tids = new ArrayDeque<Integer>( );
+    }
+
+    private QueueNode[] queue;
+
+    public SyncQueue( ) {
+        this( COND_MAX );
+    }
+
+    public SyncQueue( int condMax ) {
+        queue = new QueueNode[condMax];
+    }
+
+    // Sleeps until the condition is woken and returns the tid it was
+    // woken with, or -1 if there is no such condition
+    int enqueueAndSleep( int condition ) {
+        QueueNode node = getNode( condition );
+        if ( node == null )
+            return NO_PID;
+
+        node.lock.lock( );
+        try {
+            while ( node.tids.isEmpty( ) )
+                node.woken.awaitUninterruptibly( );
+            return node.tids.removeFirst( );
+        } finally {
+            node.lock.unlock( );
+        }
+    }
+
+    // Wakes a thread sleeping on the condition, or the next one to sleep
+    // on it, passing it tid
+    void dequeueAndWakeup( int condition, int tid ) {
+        QueueNode node = getNode( condition );
+        if ( node == null )
+            return;
+
+        node.lock.lock( );
+        try {
+            node.tids.addLast( tid );
+            node.woken.signal( );
+        } finally {
+            node.lock.unlock( );
+        }
+    }
+
+    void dequeueAndWakeup( int condition ) {
+        dequeueAndWakeup( condition, 0 );
+    }
+
+    private QueueNode getNode( int condition ) {
+        if ( condition < 0 || condition >= queue.length )
+            return null;
+        synchronized ( queue ) {
+            if ( queue[condition] == null )
+                queue[condition] = new QueueNode( );
+            return queue[condition];
+        }
+    }
+}